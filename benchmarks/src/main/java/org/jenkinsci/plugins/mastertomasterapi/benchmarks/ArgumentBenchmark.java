@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link Argument#isAssignableTo(Class)} in its three modes.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+public class ArgumentBenchmark {
+    private final Argument typed = new Argument(ArrayList.class, null, new ArrayList<Object>());
+    private final Argument untyped = new Argument(null, null, new ArrayList<Object>());
+    private final Argument nothing = new Argument(null, null, null);
+
+    private final Class<?> list = List.class, collection = Collection.class, string = String.class;
+
+    @Benchmark
+    public boolean typed() {
+        return typed.isAssignableTo(list);
+    }
+
+    @Benchmark
+    public boolean untyped() {
+        return untyped.isAssignableTo(collection);
+    }
+
+    @Benchmark
+    public boolean untypedMismatch() {
+        return untyped.isAssignableTo(string);
+    }
+
+    @Benchmark
+    public boolean nullValue() {
+        return nothing.isAssignableTo(string);
+    }
+}
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.CalculatorImpl;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.ReceiverSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.SenderSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Overhead of {@link AuthenticationForwardingRPC} on both sides, with and without tokens.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+public class AuthenticationForwardingBenchmark {
+    private final Set<Object> context = Collections.emptySet();
+    private final List<Argument> args = Fixtures.args(1, 2);
+    private RPC bare, forwarded, tokens;
+
+    @Setup
+    public void setup() {
+        bare = new LocalCall(new CalculatorImpl());
+        forwarded = AuthenticationForwardingRPC.sender(AuthenticationForwardingRPC.receiver(bare));
+        tokens = AuthenticationForwardingRPC.sender(
+                AuthenticationForwardingRPC.receiver(bare, new ReceiverSession()), new SenderSession());
+    }
+
+    @Benchmark
+    public Object baseline() throws Throwable {
+        return bare.call("add", args, context);
+    }
+
+    @Benchmark
+    public Object forwardAuthentication() throws Throwable {
+        return forwarded.call("add", args, context);
+    }
+
+    @Benchmark
+    public Object forwardToken() throws Throwable {
+        return tokens.call("add", args, context);
+    }
+}
@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.Calculator;
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.CalculatorImpl;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.ReceiverSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.SenderSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.BinaryRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.CompactCodec;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.DeadlineRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCBatcher;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCMetrics;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.ResultCache;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.Exporter;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.TypeSafeProxy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole call from a service proxy to the receiver on the other end of a {@link Channel}, in the same JVM.
+ * The two ends are connected by in-memory pipes, so this measures the serialization and dispatching, but not the network.
+ *
+ * <p>
+ * {@link #roundTrip()} goes through the same {@link RPC} chain as a service resolved from a connected master,
+ * while {@link #roundTripBare()} only has the authentication forwarding, for comparison.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+public class ChannelRoundTripBenchmark {
+    private ExecutorService executors;
+    private Channel north, south;
+    private Calculator calculator, bare;
+
+    @Setup
+    public void setup() throws Exception {
+        executors = Executors.newCachedThreadPool();
+        final FastPipedInputStream northIn = new FastPipedInputStream(), southIn = new FastPipedInputStream();
+        final FastPipedOutputStream northOut = new FastPipedOutputStream(southIn), southOut = new FastPipedOutputStream(northIn);
+
+        // both ends do the handshake, so they need to be created in parallel
+        java.util.concurrent.Future<Channel> s = executors.submit(new java.util.concurrent.Callable<Channel>() {
+            public Channel call() throws Exception {
+                return new Channel("south", executors, southIn, southOut);
+            }
+        });
+        north = new Channel("north", executors, northIn, northOut);
+        south = s.get();
+
+        // same order as AbstractChannelBasedMasterImpl.createProxy
+        RPC rpc = new CompactCodec(getClass().getClassLoader()).sender(north.call(new ExportTask()));
+        rpc = BATCHER.wrap(Calculator.class, rpc);
+        rpc = StreamingRPC.sender(rpc);
+        rpc = AuthenticationForwardingRPC.sender(rpc, new SenderSession());
+        rpc = DeadlineRPC.sender(rpc);
+        rpc = RPCMetrics.sender(rpc, "south", Calculator.class);
+        rpc = new ResultCache(100).wrap(rpc, "south", Calculator.class);
+        calculator = TypeSafeProxy.create(Calculator.class, rpc);
+
+        bare = TypeSafeProxy.create(Calculator.class, AuthenticationForwardingRPC.sender(north.call(new BareExportTask())));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        north.close();
+        south.close();
+        north.join();
+        south.join();
+        executors.shutdown();
+        RPCMetrics.forget("north");
+        RPCMetrics.forget("south");
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        return calculator.add(1,2);
+    }
+
+    @Benchmark
+    public String roundTripReference() {
+        return calculator.echo("hello");
+    }
+
+    @Benchmark
+    public int roundTripBare() {
+        return bare.add(1,2);
+    }
+
+    /**
+     * Exports the receiver on the other end the way the plugin does when a service is resolved,
+     * as in {@code AbstractChannelBasedMasterImpl.RemoteServiceTask.createReceiver}.
+     */
+    private static class ExportTask implements Callable<BinaryRPC,IOException> {
+        public BinaryRPC call() throws IOException {
+            final Channel ch = Channel.current();
+            RPC rpc = new LocalCall(new CalculatorImpl());
+            rpc = StreamingRPC.receiver(rpc, Calculator.class, new Exporter() {
+                public <T> T export(Class<T> type, T instance) {
+                    return ch.export(type, instance);
+                }
+            });
+            rpc = AuthenticationForwardingRPC.receiver(rpc, new ReceiverSession());
+            rpc = DeadlineRPC.receiver(rpc);
+            rpc = RPCMetrics.receiver(rpc, "north", Calculator.class);
+            return ch.export(BinaryRPC.class, new CompactCodec(getClass().getClassLoader()).receiver(rpc));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class BareExportTask implements Callable<RPC,IOException> {
+        public RPC call() throws IOException {
+            RPC rpc = AuthenticationForwardingRPC.receiver(new LocalCall(new CalculatorImpl()));
+            return Channel.current().export(RPC.class, rpc);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Without a time window or a batch scope, calls go straight through, as they do by default.
+     */
+    private static final RPCBatcher BATCHER = new RPCBatcher(0, TimeUnit.MILLISECONDS) {
+        @Override
+        protected Future<List<Outcome>> send(List<Call> calls) throws IOException {
+            throw new IOException("Calls aren't batched in this benchmark");
+        }
+    };
+}
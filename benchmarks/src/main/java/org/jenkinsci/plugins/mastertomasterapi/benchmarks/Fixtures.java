@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service interface and receivers shared by the benchmarks.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class Fixtures {
+    public interface Calculator {
+        int add(int a, int b);
+        String echo(String s);
+    }
+
+    public static class CalculatorImpl implements Calculator {
+        public int add(int a, int b) {
+            return a+b;
+        }
+
+        public String echo(String s) {
+            return s;
+        }
+    }
+
+    /**
+     * Receiver with many overloads of the same name, which is the worst case for the method selection.
+     */
+    public static class Overloaded {
+        public int foo() { return 0; }
+        public int foo(int a) { return a; }
+        public int foo(long a) { return (int)a; }
+        public int foo(String a) { return 1; }
+        public int foo(Object a) { return 2; }
+        public int foo(int a, int b) { return a+b; }
+        public int foo(long a, long b) { return (int)(a+b); }
+        public int foo(String a, String b) { return 3; }
+        public int foo(String a, int b) { return b; }
+        public int foo(int a, String b) { return a; }
+        public int foo(Object a, Object b) { return 4; }
+        public int foo(int a, int b, int c) { return a+b+c; }
+        public int foo(String a, String b, String c) { return 5; }
+        public int foo(List<?> a) { return a.size(); }
+        public int foo(List<?> a, int b) { return b; }
+        public int foo(byte[] a) { return a.length; }
+    }
+
+    /**
+     * Arguments typed the way {@link org.jenkinsci.plugins.mastertomasterapi.proxy.TypeSafeProxy} sends them,
+     * where the wrappers are for the parameters of the primitive types.
+     */
+    public static List<Argument> args(Object... values) {
+        Argument[] r = new Argument[values.length];
+        for (int i=0; i<values.length; i++)
+            r[i] = new Argument(values[i]==null ? null : typeOf(values[i]), null, values[i]);
+        return Arrays.asList(r);
+    }
+
+    private static Class<?> typeOf(Object v) {
+        Class<?> t = PRIMITIVES.get(v.getClass());
+        return t!=null ? t : v.getClass();
+    }
+
+    private static final Map<Class<?>,Class<?>> PRIMITIVES = new HashMap<Class<?>,Class<?>>();
+
+    static {
+        PRIMITIVES.put(Boolean.class, boolean.class);
+        PRIMITIVES.put(Byte.class, byte.class);
+        PRIMITIVES.put(Character.class, char.class);
+        PRIMITIVES.put(Short.class, short.class);
+        PRIMITIVES.put(Integer.class, int.class);
+        PRIMITIVES.put(Long.class, long.class);
+        PRIMITIVES.put(Float.class, float.class);
+        PRIMITIVES.put(Double.class, double.class);
+    }
+}
@@ -0,0 +1,72 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPC;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The method selection {@link LocalCall} used to do, which scores every public method of the receiver on every call.
+ * Kept here as the baseline for {@link LocalCallBenchmark}. Filling in missing arguments is left out,
+ * as the benchmarks don't need it.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class LinearScanCall implements RPC {
+    private final Object receiver;
+    private final Method[] methods;
+
+    public LinearScanCall(Object receiver) {
+        this.receiver = receiver;
+        this.methods = receiver.getClass().getMethods();
+    }
+
+    public Object call(String methodName, List<Argument> args, Set<Object> context) throws Throwable {
+        int score=0;
+        Method method=null;
+        for (Method m : methods) {
+            int s = score(m, methodName, args);
+            if (s>score) {
+                score = s;
+                method = m;
+            }
+        }
+        if (method==null)
+            throw new NoSuchMethodException(methodName);
+
+        Object[] a = new Object[method.getParameterTypes().length];
+        for (int i=0; i<Math.min(a.length, args.size()); i++)
+            a[i] = args.get(i).value;
+        try {
+            return method.invoke(receiver, a);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static int score(Method m, String methodName, List<Argument> args) {
+        if (!m.getName().equals(methodName))
+            return 0;
+
+        Class<?>[] paramTypes = m.getParameterTypes();
+        int expected = paramTypes.length;
+        int actual = args.size();
+
+        int c = Math.min(expected, actual);
+        for (int i=0; i<c; i++) {
+            if (!args.get(i).isAssignableTo(paramTypes[i]))
+                return 0;
+        }
+
+        if (expected == actual)
+            return 3000;
+        if (expected>actual)
+            return 2000 - (expected-actual);
+        else
+            return 1000 - (actual-expected);
+    }
+}
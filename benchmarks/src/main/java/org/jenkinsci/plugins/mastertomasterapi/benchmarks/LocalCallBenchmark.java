@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.Overloaded;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Method selection and invocation of {@link LocalCall} against a receiver with many overloads,
+ * compared to the {@linkplain LinearScanCall linear scan} it replaced.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+public class LocalCallBenchmark {
+    private final Set<Object> context = Collections.emptySet();
+    private final Overloaded receiver = new Overloaded();
+    private LocalCall call;
+    private LinearScanCall linear;
+
+    private List<Argument> exact, wider, fewer, untyped;
+
+    @Setup
+    public void setup() {
+        call = new LocalCall(receiver);
+        linear = new LinearScanCall(receiver);
+        exact = Fixtures.args("a", 1);
+        wider = Fixtures.args(1, 2, 3, 4);              // needs to drop an argument
+        fewer = Collections.singletonList(new Argument(int.class, null, 1));
+        untyped = Collections.singletonList(new Argument(null, null, "x"));
+    }
+
+    @Benchmark
+    public Object exactMatch() throws Throwable {
+        return call.call("foo", exact, context);
+    }
+
+    @Benchmark
+    public Object droppedArgument() throws Throwable {
+        return call.call("foo", wider, context);
+    }
+
+    @Benchmark
+    public Object primitiveType() throws Throwable {
+        return call.call("foo", fewer, context);
+    }
+
+    @Benchmark
+    public Object untypedArgument() throws Throwable {
+        return call.call("foo", untyped, context);
+    }
+
+    @Benchmark
+    public Object exactMatchLinearScan() throws Throwable {
+        return linear.call("foo", exact, context);
+    }
+
+    @Benchmark
+    public Object droppedArgumentLinearScan() throws Throwable {
+        return linear.call("foo", wider, context);
+    }
+
+    @Benchmark
+    public Object untypedArgumentLinearScan() throws Throwable {
+        return linear.call("foo", untyped, context);
+    }
+
+    /**
+     * Wrapping another receiver of a known class, as the serving side does for each connection.
+     */
+    @Benchmark
+    public Object wrap() {
+        return new LocalCall(new Overloaded());
+    }
+}
@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.Calculator;
+import org.jenkinsci.plugins.mastertomasterapi.benchmarks.Fixtures.CalculatorImpl;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.TypeSafeProxy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of going through {@link TypeSafeProxy} and {@link LocalCall}, compared to calling the receiver directly.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+public class TypeSafeProxyBenchmark {
+    private Calculator direct, proxied;
+    private int a = 1, b = 2;
+
+    @Setup
+    public void setup() {
+        direct = new CalculatorImpl();
+        proxied = TypeSafeProxy.create(Calculator.class, new LocalCall(direct));
+    }
+
+    @Benchmark
+    public int baseline() {
+        return direct.add(a,b);
+    }
+
+    @Benchmark
+    public int proxy() {
+        return proxied.add(a,b);
+    }
+
+    @Benchmark
+    public String proxyReference() {
+        return proxied.echo("hello");
+    }
+}
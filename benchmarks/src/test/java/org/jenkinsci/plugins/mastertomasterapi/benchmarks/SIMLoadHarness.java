@@ -0,0 +1,315 @@
+package org.jenkinsci.plugins.mastertomasterapi.benchmarks;
+
+import jenkins.model.JenkinsLocationConfiguration;
+import org.jenkinsci.plugins.mastertomasterapi.Broadcast;
+import org.jenkinsci.plugins.mastertomasterapi.InterMasterService;
+import org.jenkinsci.plugins.mastertomasterapi.Master;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCMetrics.LatencyHistogram;
+import org.jenkinsci.plugins.mastertomasterapi.simple.SIMProtocol;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+import static org.junit.Assert.*;
+
+/**
+ * Drives a mix of calls between SIM endpoints for a fixed amount of time, and reports throughput,
+ * latency percentiles, GC activity and thread counts.
+ *
+ * <p>
+ * Jenkins connects to itself over loopback sockets, so both ends go through the real
+ * {@link SIMProtocol#connect(Socket, boolean, boolean)} handshake, encryption and {@link hudson.remoting.Channel}.
+ * This only runs with {@code mvn test -Pload}, and is configured by the following system properties:
+ *
+ * <dl>
+ * <dt>sim.load.duration</dt><dd>Seconds to measure. Default 60.</dd>
+ * <dt>sim.load.warmup</dt><dd>Seconds to run before measuring. Default 10.</dd>
+ * <dt>sim.load.threads</dt><dd>Number of calling threads. Default 16.</dd>
+ * <dt>sim.load.connections</dt><dd>Number of loopback connections. Default 1.</dd>
+ * <dt>sim.load.protocol</dt><dd>Version of the protocol to connect with, 1 or 2. Default 2.</dd>
+ * <dt>sim.load.payload</dt><dd>Size in bytes of the large payload. Default 1MB.</dd>
+ * <dt>sim.load.mix</dt><dd>Relative weights of the call types. Default {@code small=90,large=5,fanout=5}.</dd>
+ * <dt>sim.load.loggedErrors</dt><dd>Number of failed calls of each type to log the cause of. Default 10.</dd>
+ * </dl>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class SIMLoadHarness {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    public interface LoadService {
+        int ping(int x);
+        byte[] echo(byte[] payload);
+    }
+
+    @TestExtension
+    public static class LoadServiceProvider extends InterMasterService {
+        @Override
+        public <T> T getInstance(Class<T> interfaceType, Master remote) {
+            if (interfaceType!=LoadService.class)
+                return null;
+            return interfaceType.cast(new LoadService() {
+                public int ping(int x) {
+                    return x;
+                }
+
+                public byte[] echo(byte[] payload) {
+                    return payload;
+                }
+            });
+        }
+    }
+
+    /**
+     * One kind of call in the mix.
+     */
+    private static abstract class Op {
+        final String name;
+        /**
+         * In microseconds.
+         */
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        abstract void run(Random r) throws Exception;
+    }
+
+    private List<Master> peers;
+    private byte[] payload;
+
+    @Test
+    public void load() throws Exception {
+        JenkinsLocationConfiguration.get().setUrl(j.getURL().toExternalForm());
+
+        peers = connect(CONNECTIONS);
+        payload = new byte[PAYLOAD];
+        new Random(0).nextBytes(payload);
+
+        Map<Op,Integer> mix = parseMix(MIX);
+        System.out.printf("SIM load: protocol %d, %d threads, %d connections, %d bytes payload, mix %s%n", V2 ? 2 : 1, THREADS, CONNECTIONS, PAYLOAD, MIX);
+
+        run(mix, WARMUP);
+        for (Op op : mix.keySet()) {
+            op.latency.reset();
+            op.errors.set(0);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+        long[] gcBefore = gcStats();
+
+        long start = System.nanoTime();
+        long allocated = run(mix, DURATION);
+        double seconds = (System.nanoTime()-start)/1e9;
+
+        long[] gcAfter = gcStats();
+        report(mix, seconds, allocated, gcAfter[0]-gcBefore[0], gcAfter[1]-gcBefore[1],
+                threadsBefore, threads.getThreadCount(), threads.getPeakThreadCount());
+
+        for (Op op : mix.keySet())
+            assertEquals(op.name+" had errors", 0, op.errors.get());
+    }
+
+    /**
+     * Makes the given number of connections from Jenkins to itself.
+     *
+     * @return the calling side of each connection.
+     */
+    private List<Master> connect(int n) throws Exception {
+        final SIMProtocol p = SIMProtocol.get();
+        final ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ExecutorService es = Executors.newCachedThreadPool();
+        try {
+            List<Master> r = new ArrayList<Master>();
+            for (int i=0; i<n; i++) {
+                Future<?> server = es.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return p.connect(ss.accept(), false, V2);
+                    }
+                });
+                r.add(p.connect(new Socket(InetAddress.getLoopbackAddress(), ss.getLocalPort()), true, V2));
+                server.get(30, TimeUnit.SECONDS);
+            }
+            return r;
+        } finally {
+            ss.close();
+            es.shutdown();
+        }
+    }
+
+    private Map<Op,Integer> parseMix(String spec) {
+        Map<Op,Integer> mix = new LinkedHashMap<Op,Integer>();
+        for (String token : spec.split(",")) {
+            String[] kv = token.trim().split("=");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight>0)
+                mix.put(createOp(kv[0].trim()), weight);
+        }
+        return mix;
+    }
+
+    private Op createOp(String name) {
+        if (name.equals("small"))
+            return new Op(name) {
+                void run(Random r) throws Exception {
+                    int x = r.nextInt();
+                    assertEquals(x, pick(r).getService(LoadService.class).ping(x));
+                }
+            };
+        if (name.equals("large"))
+            return new Op(name) {
+                void run(Random r) throws Exception {
+                    assertEquals(payload.length, pick(r).getService(LoadService.class).echo(payload).length);
+                }
+            };
+        if (name.equals("fanout"))
+            return new Op(name) {
+                void run(Random r) throws Exception {
+                    Broadcast.Results<Integer> results = new Broadcast().call(peers, new Broadcast.Task<Integer>() {
+                        public Integer call(Master m) throws Exception {
+                            return m.getService(LoadService.class).ping(1);
+                        }
+                    });
+                    if (!results.isComplete())
+                        throw new Exception("Fan-out failed: "+results.getFailures()+" timed out: "+results.getTimedOut());
+                }
+            };
+        throw new IllegalArgumentException("Unknown call type: "+name+". Expected small, large, or fanout");
+    }
+
+    private Master pick(Random r) {
+        return peers.get(r.nextInt(peers.size()));
+    }
+
+    /**
+     * Runs the mix from all the threads for the given number of seconds.
+     *
+     * @return bytes allocated by the calling threads, or -1 if the JVM can't tell.
+     */
+    private long run(final Map<Op,Integer> mix, int seconds) throws Exception {
+        final long end = System.nanoTime()+TimeUnit.SECONDS.toNanos(seconds);
+        int total = 0;
+        for (int w : mix.values())
+            total += w;
+        final int totalWeight = total;
+
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Long>> workers = new ArrayList<Future<Long>>();
+            for (int i=0; i<THREADS; i++) {
+                final int seed = i;
+                workers.add(es.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        Random r = new Random(seed);
+                        long allocBefore = allocatedBytes();
+                        while (System.nanoTime()-end<0) {
+                            Op op = choose(mix, r.nextInt(totalWeight));
+                            long start = System.nanoTime();
+                            try {
+                                op.run(r);
+                                op.latency.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-start));
+                            } catch (Exception e) {
+                                if (op.errors.incrementAndGet()<=LOGGED_ERRORS)
+                                    LOGGER.log(WARNING, op.name+" failed", e);
+                            }
+                        }
+                        long allocAfter = allocatedBytes();
+                        return allocBefore<0 ? -1 : allocAfter-allocBefore;
+                    }
+                }));
+            }
+
+            long allocated = 0;
+            for (Future<Long> f : workers) {
+                long a = f.get();
+                allocated = a<0 || allocated<0 ? -1 : allocated+a;
+            }
+            return allocated;
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    private static Op choose(Map<Op,Integer> mix, int n) {
+        for (Entry<Op,Integer> e : mix.entrySet()) {
+            n -= e.getValue();
+            if (n<0)
+                return e.getKey();
+        }
+        throw new AssertionError();
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean t = ManagementFactory.getThreadMXBean();
+        if (t instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)t).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    /**
+     * Number of collections and milliseconds spent in them so far, across all collectors.
+     */
+    private static long[] gcStats() {
+        long count = 0, time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private static void report(Map<Op,Integer> mix, double seconds, long allocated, long gcCount, long gcMillis,
+                               int threadsBefore, int threadsAfter, int threadsPeak) {
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+                "call", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : mix.keySet()) {
+            LatencyHistogram h = op.latency;
+            System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+                    op.name, h.count(), op.errors.get(), h.count()/seconds,
+                    h.percentile(0.50)/1000.0, h.percentile(0.99)/1000.0, h.percentile(0.999)/1000.0, h.getMax()/1000.0);
+        }
+        System.out.printf("GC: %d collections, %d ms (%.1f%% of the time)%n", gcCount, gcMillis, gcMillis/(seconds*10));
+        if (allocated>=0)
+            System.out.printf("Allocated by calling threads: %.1f MB/s%n", allocated/seconds/1024/1024);
+        System.out.printf("Threads: %d before, %d after, %d peak%n", threadsBefore, threadsAfter, threadsPeak);
+    }
+
+    private static final int DURATION = Integer.getInteger("sim.load.duration", 60);
+    private static final int WARMUP = Integer.getInteger("sim.load.warmup", 10);
+    private static final int THREADS = Integer.getInteger("sim.load.threads", 16);
+    private static final int CONNECTIONS = Integer.getInteger("sim.load.connections", 1);
+    private static final boolean V2 = Integer.getInteger("sim.load.protocol", 2)!=1;
+    private static final int PAYLOAD = Integer.getInteger("sim.load.payload", 1024*1024);
+    private static final String MIX = System.getProperty("sim.load.mix", "small=90,large=5,fanout=5");
+    private static final int LOGGED_ERRORS = Integer.getInteger("sim.load.loggedErrors", 10);
+
+    private static final Logger LOGGER = Logger.getLogger(SIMLoadHarness.class.getName());
+}
@@ -1,18 +1,63 @@
 package org.jenkinsci.plugins.mastertomasterapi;
 
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import hudson.remoting.Callable;
 import hudson.remoting.Channel;
+import hudson.remoting.Channel.Listener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Argument;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AsyncRPC;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.ReceiverSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.SenderSession;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.BinaryRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Bulk;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Cacheable;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.CallCodec;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.DeadlineRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.DeadlineRPC.Deadline;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.RPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCBatcher;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCBatcher.Call;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCBatcher.Outcome;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCMetrics;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.ResultCache;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.Chunk;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.ChunkSource;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.ChunkSourceTable;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.ChunkSources;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.Exporter;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.StreamingRPC.RemoteIterator;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.TypeSafeProxy;
 
 import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Partial implementation of {@link Master} that uses {@link Channel} exporting to
@@ -22,24 +67,191 @@ import java.util.concurrent.ExecutionException;
  */
 public abstract class AbstractChannelBasedMasterImpl extends Master {
 
-    private final LoadingCache<Class,Object> services = CacheBuilder.newBuilder().build(new CacheLoader<Class, Object>() {
+    /**
+     * Results of {@link #resolveService(Class)}, including misses.
+     */
+    private final Cache<Class,Resolved> services = CacheBuilder.newBuilder().build();
+
+    /**
+     * The channel whose closure we are listening to, in order to drop {@link #services} resolved over it.
+     * Guarded by {@link #services}.
+     */
+    private Channel watched;
+
+    /**
+     * Sends calls collected by {@link #batch(java.util.concurrent.Callable)} as one {@link Channel#callAsync(Callable)}.
+     */
+    private final RPCBatcher batcher = new RPCBatcher(BATCH_WINDOW, TimeUnit.MILLISECONDS) {
         @Override
-        public Object load(Class key) throws Exception {
-            return resolveService(key);
+        protected Future<List<Outcome>> send(List<Call> calls) throws IOException {
+            Channel ch = getChannel();
+            if (ch==null)
+                throw new IOException("Not connected to "+getURL());
+            return ch.callAsync(new BatchTask(calls));
         }
-    });
+    };
+
+    /**
+     * Proxies handed out from {@link #getAsyncService(Class, Class)}, keyed by the service type and the async view.
+     */
+    private final ConcurrentMap<List<Class>,Object> asyncServices = new ConcurrentHashMap<List<Class>,Object>();
+
+    /**
+     * Number of calls and transfers to and from this master that are in progress.
+     */
+    private final AtomicInteger activeCalls = new AtomicInteger();
+
+    /**
+     * Asynchronous calls to this master whose results haven't arrived yet, as far as {@link #isIdleFor(long, TimeUnit)} knows.
+     */
+    private final Set<Future<?>> pendingResults = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>,Boolean>());
+
+    /**
+     * Iterators and incoming transfers between this master and us that are still open.
+     * Weakly held, so that the ones abandoned without being closed don't keep the connection open forever.
+     */
+    private final Set<Object> openStreams = Collections.newSetFromMap(new MapMaker().weakKeys().<Object,Boolean>makeMap());
+
+    /**
+     * {@link System#nanoTime()} when a call to or from this master last started or ended.
+     */
+    private volatile long lastActive = System.nanoTime();
 
     @CheckForNull
-    public <T> T getService(Class<T> type) {
+    public <T> T getService(final Class<T> type) {
         if (!type.isInterface())
             throw new UnsupportedOperationException(type+" is not an interface");
+
+        Resolved r = services.getIfPresent(type);
+        if (r!=null && !r.isValid(getChannel()))
+            services.asMap().remove(type, r);
+
         try {
-            return type.cast(services.get(type));
+            return type.cast(services.get(type, new java.util.concurrent.Callable<Resolved>() {
+                public Resolved call() throws Exception {
+                    Channel ch = getChannel();
+                    Object proxy = resolveService(type);
+                    if (ch!=null)
+                        watch(ch);
+                    return new Resolved(ch, proxy);
+                }
+            }).proxy);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resolves all the services that aren't resolved yet in one round trip.
+     *
+     * This goes straight to {@link #getChannel()}, so a subtype that overrides {@link #resolveService(Class)}
+     * needs to override this method, too.
+     */
+    @Override
+    public void prefetchServices(Class<?>... types) throws IOException, InterruptedException {
+        Channel ch = getChannel();
+        List<Class> missing = new ArrayList<Class>();
+        for (Class<?> t : types) {
+            if (!t.isInterface())
+                throw new UnsupportedOperationException(t+" is not an interface");
+            Resolved r = services.getIfPresent(t);
+            if ((r==null || !r.isValid(ch)) && !missing.contains(t))
+                missing.add(t);
+        }
+        if (missing.isEmpty() || ch==null)
+            return;
+
+        CallCodec codec = senderCodec(ch);
+        List<Object> remotes = ch.call(new RemoteServicesTask(missing, codec!=null));
+        watch(ch);
+        for (int i=0; i<missing.size(); i++) {
+            Object remote = remotes.get(i);
+            Class type = missing.get(i);
+            services.put(type, new Resolved(ch, remote==null ? null : createProxy(type, ch, codec, remote)));
         }
     }
 
+    /**
+     * Drops services resolved over the given channel when it gets closed, along with the asynchronous proxies,
+     * as they are tied to the channel and need to be resolved again over the next one.
+     * Results of {@link Cacheable} methods are dropped as well, as the invalidations sent while disconnected are lost.
+     */
+    private void watch(final Channel ch) {
+        synchronized (services) {
+            if (watched==ch)    return;
+            watched = ch;
+        }
+        ch.addListener(new Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                for (Iterator<Resolved> itr = services.asMap().values().iterator(); itr.hasNext(); ) {
+                    if (itr.next().channel==ch)
+                        itr.remove();
+                }
+                asyncServices.clear();
+                RESULTS.invalidate(getPublicKeyString(), null, null);
+            }
+        });
+    }
+
+    /**
+     * Outcome of resolving a service, which remembers the channel it was resolved over.
+     */
+    private static final class Resolved {
+        private final Channel channel;
+        /**
+         * Proxy to the service, or null if the other side doesn't have it.
+         */
+        private final Object proxy;
+        /**
+         * {@link System#nanoTime()} at which a miss should be asked again.
+         */
+        private final long expires = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(MISS_TTL);
+
+        private Resolved(Channel channel, Object proxy) {
+            this.channel = channel;
+            this.proxy = proxy;
+        }
+
+        boolean isValid(Channel current) {
+            return channel==current && (proxy!=null || System.nanoTime()-expires<0);
+        }
+    }
+
+    @Override
+    public <V> V batch(java.util.concurrent.Callable<V> body) throws Exception {
+        return batcher.batch(body);
+    }
+
+    @CheckForNull
+    @Override
+    public <T> T getAsyncService(Class<?> type, Class<T> asyncView) {
+        if (!asyncView.isInterface())
+            throw new UnsupportedOperationException(asyncView+" is not an interface");
+
+        List<Class> key = Arrays.<Class>asList(type, asyncView);
+        Object o = asyncServices.get(key);
+        if (o==null) {
+            if (getService(type)==null)
+                return null;    // not available on this master
+            Channel ch = getChannel();
+            if (ch==null)
+                return null;
+
+            AsyncRPC rpc = asyncLane(type, ch);
+            rpc = DeadlineRPC.sender(rpc);
+            rpc = RPCMetrics.sender(rpc, peerName(this), type);
+            rpc = tracking(rpc);
+            o = TypeSafeProxy.createAsync(asyncView, rpc);
+
+            Object prev = asyncServices.putIfAbsent(key, o);
+            if (prev!=null)     o = prev;
+        }
+        return asyncView.cast(o);
+    }
+
     /**
      * The underlying function that serves {@link #getService(Class)}.
      *
@@ -53,34 +265,558 @@ public abstract class AbstractChannelBasedMasterImpl extends Master {
          */
         Channel ch = getChannel();
         if (ch==null)   return null;
-        RPC rpc = ch.call(new RemoteServiceTask(type));
-        rpc = AuthenticationForwardingRPC.sender(rpc);
+        CallCodec codec = senderCodec(ch);
+        Object remote = ch.call(codec!=null ? new RemoteBinaryServiceTask(type) : new RemoteServiceTask(type));
+        if (remote==null)   return null;
+        return createProxy(type, ch, codec, remote);
+    }
+
+    /**
+     * Builds the caller side of the {@link RPC} chain on top of the exported receiver.
+     *
+     * @param remote
+     *      {@link BinaryRPC} if the codec is given, or else {@link RPC}.
+     */
+    private <T> T createProxy(Class<T> type, Channel ch, @CheckForNull CallCodec codec, Object remote) {
+        RPC rpc = lane(type, ch, codec, remote);
+        Map<String,Set<List<Class<?>>>> bulk = bulkMethods(type);
+        if (!bulk.isEmpty())
+            rpc = new LaneRouter(type, rpc, bulk);
+        rpc = DeadlineRPC.sender(rpc);
+        rpc = RPCMetrics.sender(rpc, peerName(this), type);
+        rpc = tracking(rpc);
+        rpc = RESULTS.wrap(rpc, getPublicKeyString(), type);
         return type.cast(TypeSafeProxy.create(type,rpc));
     }
 
-    private static class RemoteServiceTask implements Callable<RPC,IOException> {
+    /**
+     * Part of the caller side of the {@link RPC} chain that's tied to one channel.
+     * Calls are only batched on {@link #getChannel()}, which is where {@link #batcher} sends them.
+     * Calls with a {@linkplain DeadlineRPC deadline} are made asynchronously at the bottom, so that they can be cancelled.
+     */
+    private RPC lane(Class type, Channel ch, @CheckForNull CallCodec codec, Object remote) {
+        RPC rpc = codec!=null ? codec.sender(new CancellableBinaryRPC(ch, type, (BinaryRPC) remote))
+                              : new CancellableRPC(ch, type, (RPC) remote);
+        if (ch==getChannel())
+            rpc = batcher.wrap(type, rpc);
+        rpc = StreamingRPC.sender(rpc);
+        rpc = AuthenticationForwardingRPC.sender(rpc, senderSession(ch));
+        return rpc;
+    }
+
+    /**
+     * Part of the asynchronous {@link RPC} chain below {@link DeadlineRPC}, which goes through {@link #batcher}.
+     */
+    private AsyncRPC asyncLane(Class type, Channel ch) {
+        AsyncRPC rpc = batcher.wrap(type);
+        rpc = StreamingRPC.sender(rpc);
+        rpc = AuthenticationForwardingRPC.sender(rpc, senderSession(ch));
+        return rpc;
+    }
+
+    /**
+     * Bottom of {@link #lane(Class, Channel, CallCodec, Object)} without a codec.
+     * Calls without a deadline go straight to the exported receiver, and the others go through {@link CallTask}.
+     */
+    private static final class CancellableRPC implements RPC {
+        private final Channel ch;
+        private final Class type;
+        private final RPC remote;
+
+        CancellableRPC(Channel ch, Class type, RPC remote) {
+            this.ch = ch;
+            this.type = type;
+            this.remote = remote;
+        }
+
+        public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+            Deadline d = DeadlineRPC.current();
+            if (d==null)
+                return remote.call(methodName, arguments, context);
+            return DeadlineRPC.await(ch.callAsync(new CallTask(type, methodName, arguments, context)), d, methodName);
+        }
+    }
+
+    /**
+     * {@link CancellableRPC} with a codec.
+     */
+    private static final class CancellableBinaryRPC implements BinaryRPC {
+        private final Channel ch;
+        private final Class type;
+        private final BinaryRPC remote;
+
+        CancellableBinaryRPC(Channel ch, Class type, BinaryRPC remote) {
+            this.ch = ch;
+            this.type = type;
+            this.remote = remote;
+        }
+
+        public Object call(byte[] request, @CheckForNull List<Argument> arguments) throws Throwable {
+            Deadline d = DeadlineRPC.current();
+            if (d==null)
+                return remote.call(request, arguments);
+            return DeadlineRPC.await(ch.callAsync(new BinaryCallTask(type, request, arguments)), d, "A call to "+type.getName());
+        }
+    }
+
+    /**
+     * Parameter types of the methods that are {@link Bulk}, keyed by their names.
+     * Overloads are told apart the same way {@link ResultCache} does.
+     */
+    private static Map<String,Set<List<Class<?>>>> bulkMethods(Class<?> type) {
+        boolean all = type.isAnnotationPresent(Bulk.class);
+        Map<String,Set<List<Class<?>>>> r = new HashMap<String,Set<List<Class<?>>>>();
+        for (Method m : type.getMethods()) {
+            if (all || m.isAnnotationPresent(Bulk.class)) {
+                Set<List<Class<?>>> overloads = r.get(m.getName());
+                if (overloads==null)
+                    r.put(m.getName(), overloads = new HashSet<List<Class<?>>>());
+                overloads.add(Arrays.<Class<?>>asList(m.getParameterTypes()));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Sends calls to {@link Bulk} methods over {@link #getBulkChannel()}, if there's one apart from {@link #getChannel()}.
+     * The service is resolved over the bulk channel when it's first needed.
+     */
+    private final class LaneRouter implements RPC {
+        private final Class type;
+        private final RPC interactive;
+        private final Map<String,Set<List<Class<?>>>> bulkMethods;
+
+        /**
+         * The bulk channel {@link #bulk} is resolved over. Guarded by this.
+         */
+        private Channel channel;
+        /**
+         * Null if the service isn't available over {@link #channel}. Guarded by this.
+         */
+        private RPC bulk;
+
+        LaneRouter(Class type, RPC interactive, Map<String,Set<List<Class<?>>>> bulkMethods) {
+            this.type = type;
+            this.interactive = interactive;
+            this.bulkMethods = bulkMethods;
+        }
+
+        public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+            if (isBulk(methodName, arguments)) {
+                RPC rpc = bulk();
+                if (rpc!=null)
+                    return rpc.call(methodName, arguments, context);
+            }
+            return interactive.call(methodName, arguments, context);
+        }
+
+        private boolean isBulk(String methodName, List<Argument> arguments) {
+            Set<List<Class<?>>> overloads = bulkMethods.get(methodName);
+            if (overloads==null)    return false;
+            Class<?>[] types = new Class<?>[arguments.size()];
+            for (int i=0; i<types.length; i++)
+                types[i] = arguments.get(i).type;
+            return overloads.contains(Arrays.asList(types));
+        }
+
+        /**
+         * Resolves the service over the bulk channel when it's first needed, without holding the lock
+         * during the round trip, so that calls through this router don't wait on one another.
+         * Threads that race to resolve it get the same exported object back anyway.
+         */
+        private RPC bulk() throws IOException, InterruptedException {
+            Channel ch = getBulkChannel();
+            if (ch==null || ch==getChannel() || ch.isInClosed() || ch.isOutClosed())
+                return null;
+            synchronized (this) {
+                if (ch==channel)
+                    return bulk;
+            }
+
+            CallCodec codec = senderCodec(ch);
+            Object remote = ch.call(codec!=null ? new RemoteBinaryServiceTask(type) : new RemoteServiceTask(type));
+            RPC rpc = remote==null ? null : lane(type, ch, codec, remote);
+            synchronized (this) {
+                channel = ch;
+                bulk = rpc;
+            }
+            return rpc;
+        }
+    }
+
+    /**
+     * Sends the file through {@link #doTransfer(File, long, TransferTicket)}, and counts it as a call in progress
+     * so that the connection isn't closed as idle in the middle.
+     */
+    @Override
+    public TransferReport transfer(File source, long offset, TransferTicket ticket) throws IOException, InterruptedException {
+        activeCalls.incrementAndGet();
+        lastActive = System.nanoTime();
+        try {
+            return doTransfer(source, offset, ticket);
+        } finally {
+            lastActive = System.nanoTime();
+            activeCalls.decrementAndGet();
+        }
+    }
+
+    /**
+     * The underlying function that serves {@link #transfer(File, long, TransferTicket)}.
+     *
+     * A {@link Master} implementation can override this method to use a more efficient transport.
+     */
+    protected TransferReport doTransfer(File source, long offset, TransferTicket ticket) throws IOException, InterruptedException {
+        return super.transfer(source, offset, ticket);
+    }
+
+    /**
+     * True if nothing has gone to or from this master for the given amount of time, and nothing is in progress:
+     * no call is waiting for its result, and no transfer or iterator from the service proxies is still open.
+     * Calls made straight on the {@linkplain #getChannel() channel} aren't counted.
+     */
+    public boolean isIdleFor(long time, TimeUnit unit) {
+        for (Iterator<Future<?>> itr = pendingResults.iterator(); itr.hasNext();) {
+            if (itr.next().isDone()) {
+                itr.remove();
+                lastActive = System.nanoTime(); // we don't know when it completed, so count from now
+            }
+        }
+        return activeCalls.get()==0 && pendingResults.isEmpty() && openStreams.isEmpty()
+            && System.nanoTime()-lastActive>=unit.toNanos(time);
+    }
+
+    /**
+     * Keeps track of the calls going through, for {@link #isIdleFor(long, TimeUnit)}.
+     */
+    private RPC tracking(final RPC rpc) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                activeCalls.incrementAndGet();
+                lastActive = System.nanoTime();
+                try {
+                    return tracking(rpc.call(methodName, arguments, context));
+                } finally {
+                    lastActive = System.nanoTime();
+                    activeCalls.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Asynchronous calls are in progress until their results arrive, which {@link #isIdleFor(long, TimeUnit)} checks.
+     */
+    private AsyncRPC tracking(final AsyncRPC rpc) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                lastActive = System.nanoTime();
+                Future<Object> f = Futures.lazyTransform(rpc.callAsync(methodName, arguments, context), new Function<Object,Object>() {
+                    public Object apply(Object v) {
+                        return tracking(v);
+                    }
+                });
+                pendingResults.add(f);
+                return f;
+            }
+        };
+    }
+
+    /**
+     * Iterators returned from this master are in progress until they are exhausted or closed.
+     */
+    private Object tracking(Object v) {
+        if (v instanceof RemoteIterator)
+            return new TrackedIterator((RemoteIterator<?>)v);
+        return v;
+    }
+
+    /**
+     * Incoming transfers from this master are in progress until the stream is closed.
+     */
+    /*package*/ OutputStream tracking(OutputStream out) {
+        return new TrackedOutputStream(out);
+    }
+
+    private void opened(Object stream) {
+        lastActive = System.nanoTime();
+        openStreams.add(stream);
+    }
+
+    private void closed(Object stream) {
+        if (openStreams.remove(stream))
+            lastActive = System.nanoTime();
+    }
+
+    private final class TrackedIterator implements RemoteIterator<Object> {
+        private final RemoteIterator<?> base;
+
+        TrackedIterator(RemoteIterator<?> base) {
+            this.base = base;
+            opened(this);
+        }
+
+        public boolean hasNext() {
+            lastActive = System.nanoTime();
+            boolean b = base.hasNext();
+            if (!b)
+                closed(this);
+            return b;
+        }
+
+        public Object next() {
+            lastActive = System.nanoTime();
+            return base.next();
+        }
+
+        public void remove() {
+            base.remove();
+        }
+
+        public void close() throws IOException {
+            closed(this);
+            base.close();
+        }
+    }
+
+    /**
+     * The receiver side of {@link TrackedIterator}, which keeps the connection open on this side as well.
+     */
+    private final class TrackedChunkSource implements ChunkSource {
+        private final ChunkSource base;
+
+        TrackedChunkSource(ChunkSource base) {
+            this.base = base;
+            opened(this);
+        }
+
+        public Chunk next(int credit) throws IOException {
+            lastActive = System.nanoTime();
+            Chunk c = base.next(credit);
+            if (c.isLast())
+                closed(this);
+            return c;
+        }
+
+        public void close() throws IOException {
+            closed(this);
+            base.close();
+        }
+    }
+
+    private final class TrackedOutputStream extends FilterOutputStream {
+        TrackedOutputStream(OutputStream out) {
+            super(out);
+            opened(this);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed(this);
+            super.close();
+        }
+    }
+
+    /**
+     * Drops the {@link RPCMetrics} of this master along with their MBeans.
+     * The implementation calls this once the connection to this master is closed.
+     */
+    protected void discardMetrics() {
+        RPCMetrics.forget(peerName(this));
+    }
+
+    /**
+     * Identifies the master in {@link RPCMetrics}.
+     */
+    private static String peerName(@CheckForNull Master m) {
+        if (m==null)
+            return "unknown";
+        try {
+            return m.getPublicKeyFingerprint();
+        } catch (IOException e) {
+            return String.valueOf(m.getURL());
+        }
+    }
+
+    /**
+     * Gets the sender side of the authentication tokens for the given connection.
+     *
+     * Sessions are kept as {@link Channel} properties so that they go away with the connection.
+     */
+    private static SenderSession senderSession(Channel ch) {
+        synchronized (SESSION_LOCK) {
+            SenderSession s = (SenderSession) ch.getProperty(SenderSession.class);
+            if (s==null) {
+                final SenderSession session = s = new SenderSession();
+                ch.setProperty(SenderSession.class, s);
+                ch.addListener(new Listener() {
+                    @Override
+                    public void onClosed(Channel channel, IOException cause) {
+                        session.invalidate();
+                    }
+                });
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Gets the receiver side of the authentication tokens for the given connection.
+     */
+    private static ReceiverSession receiverSession(Channel ch) {
+        synchronized (SESSION_LOCK) {
+            ReceiverSession s = (ReceiverSession) ch.getProperty(ReceiverSession.class);
+            if (s==null) {
+                final ReceiverSession session = s = new ReceiverSession();
+                ch.setProperty(ReceiverSession.class, s);
+                ch.addListener(new Listener() {
+                    @Override
+                    public void onClosed(Channel channel, IOException cause) {
+                        session.invalidate();
+                    }
+                });
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Agrees on the {@link CallCodec} to use for calls to the other side of the given connection.
+     *
+     * @return null to send calls as they are.
+     */
+    private static CallCodec senderCodec(Channel ch) throws IOException, InterruptedException {
+        synchronized (SESSION_LOCK) {
+            Object c = ch.getProperty(SENDER_CODEC);
+            if (c!=null)
+                return c instanceof CallCodec ? (CallCodec) c : null;
+        }
+
+        String name = ch.call(new NegotiateCodecTask(CallCodec.getSupportedNames()));
+        CallCodec codec = name!=null ? CallCodec.create(name, AbstractChannelBasedMasterImpl.class.getClassLoader()) : null;
+
+        synchronized (SESSION_LOCK) {
+            Object c = ch.getProperty(SENDER_CODEC);
+            if (c==null)    // if some other thread has negotiated concurrently, stick to that one
+                ch.setProperty(SENDER_CODEC, c = codec!=null ? codec : NO_CODEC);
+            return c instanceof CallCodec ? (CallCodec) c : null;
+        }
+    }
+
+    private static final Object SESSION_LOCK = new Object();
+
+    /**
+     * {@link Channel} property keys of the {@link CallCodec}s for calls in each direction.
+     */
+    private static final String SENDER_CODEC = CallCodec.class.getName()+".sender";
+    private static final String RECEIVER_CODEC = CallCodec.class.getName()+".receiver";
+    private static final Object NO_CODEC = new Object();
+
+    /**
+     * Picks the {@link CallCodec} on the receiver side.
+     * Once picked, the same codec is used for all the services on the connection, as they share the dictionary.
+     */
+    private static class NegotiateCodecTask implements Callable<String,IOException> {
+        private final List<String> offered;
+
+        private NegotiateCodecTask(List<String> offered) {
+            this.offered = new ArrayList<String>(offered);
+        }
+
+        public String call() throws IOException {
+            Channel ch = Channel.current();
+            synchronized (SESSION_LOCK) {
+                CallCodec c = (CallCodec) ch.getProperty(RECEIVER_CODEC);
+                if (c!=null)
+                    return offered.contains(c.getName()) ? c.getName() : null;
+
+                String name = CallCodec.choose(offered);
+                if (name!=null)
+                    ch.setProperty(RECEIVER_CODEC, CallCodec.create(name, Jenkins.getInstance().pluginManager.uberClassLoader));
+                return name;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Variant of {@link RemoteServiceTask} that exports the receiver through the negotiated {@link CallCodec}.
+     */
+    private static class RemoteBinaryServiceTask implements Callable<Object,IOException> {
+        private final Class interfaceType;
+
+        private RemoteBinaryServiceTask(Class interfaceType) {
+            this.interfaceType = interfaceType;
+        }
+
+        public Object call() throws IOException {
+            return export(Channel.current(), interfaceType);
+        }
+
+        static BinaryRPC export(Channel ch, Class interfaceType) throws IOException {
+            CallCodec codec = (CallCodec) ch.getProperty(RECEIVER_CODEC);
+            if (codec==null)
+                throw new IOException("No codec has been negotiated on "+ch.getName());
+            return Exports.of(ch).getBinary(ch, interfaceType, codec);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class RemoteServiceTask implements Callable<Object,IOException> {
         private final Class interfaceType;
 
         private RemoteServiceTask(Class interfaceType) {
             this.interfaceType = interfaceType;
         }
 
-        public RPC call() throws IOException {
-            Channel ch = Channel.current();
-            Master m = Master.from(ch);
+        public Object call() throws IOException {
+            return export(Channel.current(), interfaceType);
+        }
+
+        static RPC export(Channel ch, Class interfaceType) {
+            return Exports.of(ch).get(ch, interfaceType);
+        }
+
+        /**
+         * Builds the receiver side of the {@link RPC} chain for the given service.
+         *
+         * @return null if no {@link InterMasterService} provides the service.
+         */
+        static RPC createReceiver(final Channel ch, Class interfaceType) {
+            final Master m = Master.from(ch);
             for (InterMasterService ims : InterMasterService.all()) {
                 Object o = ims.getInstance(interfaceType, m);
                 if (o!=null) {
                     RPC rpc = toRPC(o);
-                    rpc = AuthenticationForwardingRPC.receiver(rpc);
-                    rpc = ch.export(RPC.class, rpc);
+                    rpc = StreamingRPC.receiver(rpc, interfaceType, new Exporter() {
+                        public <T> T export(Class<T> type, T instance) {
+                            if (instance instanceof ChunkSource) {
+                                ChunkSource s = (ChunkSource) instance;
+                                if (m instanceof AbstractChannelBasedMasterImpl)
+                                    s = ((AbstractChannelBasedMasterImpl) m).new TrackedChunkSource(s);
+                                return type.cast(Exports.of(ch).addChunkSource(ch, s));
+                            }
+                            return ch.export(type, instance);
+                        }
+                    });
+                    rpc = AuthenticationForwardingRPC.receiver(rpc, receiverSession(ch));
+                    rpc = DeadlineRPC.receiver(rpc);
+                    rpc = RPCMetrics.receiver(rpc, peerName(m), interfaceType);
+                    if (m instanceof AbstractChannelBasedMasterImpl)
+                        rpc = ((AbstractChannelBasedMasterImpl) m).tracking(rpc);
                     return rpc;
                 }
             }
             return null;
         }
 
-        private RPC toRPC(Object o) {
+        private static RPC toRPC(Object o) {
             if (o instanceof RPC)
                 return (RPC) o;
             else
@@ -90,4 +826,254 @@ public abstract class AbstractChannelBasedMasterImpl extends Master {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Receivers of services on one {@link Channel}, and their exported forms.
+     *
+     * <p>
+     * A peer that asks for the same service again, for example after its cache of services was dropped,
+     * gets the same exported object back, instead of a new entry in the export table of the channel.
+     * This is kept as a property of the channel, so it goes away with the connection, which also
+     * means there's one of this for each master on the other side.
+     */
+    private static final class Exports {
+        private final Map<Class,RPC> receivers = new HashMap<Class,RPC>();
+        private final Map<Class,RPC> exported = new HashMap<Class,RPC>();
+        private final Map<Class,BinaryRPC> binaryReceivers = new HashMap<Class,BinaryRPC>();
+        private final Map<Class,BinaryRPC> binaries = new HashMap<Class,BinaryRPC>();
+        private final ChunkSourceTable chunkSources = new ChunkSourceTable();
+        private ChunkSources exportedChunkSources;
+
+        /**
+         * Receiver side of the {@link RPC} chain, without exporting it.
+         * Missing services aren't remembered, as they can become available later.
+         */
+        synchronized RPC getReceiver(Channel ch, Class type) {
+            RPC rpc = receivers.get(type);
+            if (rpc==null) {
+                rpc = RemoteServiceTask.createReceiver(ch, type);
+                if (rpc!=null)
+                    receivers.put(type, rpc);
+            }
+            return rpc;
+        }
+
+        synchronized RPC get(Channel ch, Class type) {
+            RPC rpc = exported.get(type);
+            if (rpc==null) {
+                rpc = getReceiver(ch, type);
+                if (rpc!=null)
+                    exported.put(type, rpc = ch.export(RPC.class, rpc));
+            }
+            return rpc;
+        }
+
+        /**
+         * {@link #getReceiver(Channel, Class)} behind the codec, without exporting it.
+         */
+        synchronized BinaryRPC getBinaryReceiver(Channel ch, Class type, CallCodec codec) {
+            BinaryRPC b = binaryReceivers.get(type);
+            if (b==null) {
+                RPC rpc = getReceiver(ch, type);
+                if (rpc!=null)
+                    binaryReceivers.put(type, b = codec.receiver(rpc));
+            }
+            return b;
+        }
+
+        synchronized BinaryRPC getBinary(Channel ch, Class type, CallCodec codec) {
+            BinaryRPC b = binaries.get(type);
+            if (b==null) {
+                BinaryRPC r = getBinaryReceiver(ch, type, codec);
+                if (r!=null)
+                    binaries.put(type, b = ch.export(BinaryRPC.class, r));
+            }
+            return b;
+        }
+
+        /**
+         * Makes the iterator available to the caller side until it's closed or exhausted.
+         * The table is exported once, so iterators don't leave entries in the export table of the channel.
+         */
+        synchronized ChunkSource addChunkSource(Channel ch, ChunkSource s) {
+            if (exportedChunkSources==null)
+                exportedChunkSources = ch.export(ChunkSources.class, chunkSources);
+            return chunkSources.add(s, exportedChunkSources);
+        }
+
+        static Exports of(Channel ch) {
+            synchronized (SESSION_LOCK) {
+                Exports e = (Exports) ch.getProperty(Exports.class);
+                if (e==null)
+                    ch.setProperty(Exports.class, e = new Exports());
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Resolves multiple services at once for {@link #prefetchServices(Class[])}.
+     * Missing services are reported as null in the corresponding position.
+     */
+    private static class RemoteServicesTask implements Callable<List<Object>,IOException> {
+        private final List<Class> interfaceTypes;
+        /**
+         * Export through the negotiated {@link CallCodec}, as in {@link RemoteBinaryServiceTask}.
+         */
+        private final boolean binary;
+
+        private RemoteServicesTask(List<Class> interfaceTypes, boolean binary) {
+            this.interfaceTypes = new ArrayList<Class>(interfaceTypes);
+            this.binary = binary;
+        }
+
+        public List<Object> call() throws IOException {
+            Channel ch = Channel.current();
+            List<Object> r = new ArrayList<Object>(interfaceTypes.size());
+            for (Class t : interfaceTypes)
+                r.add(binary ? RemoteBinaryServiceTask.export(ch, t) : RemoteServiceTask.export(ch, t));
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Performs a batch of calls sent from {@link #batcher} on the receiver side.
+     */
+    private static class BatchTask implements Callable<List<Outcome>,IOException> {
+        private final List<Call> calls;
+
+        private BatchTask(List<Call> calls) {
+            this.calls = calls;
+        }
+
+        public List<Outcome> call() throws IOException {
+            Channel ch = Channel.current();
+            Map<Class,RPC> receivers = new HashMap<Class,RPC>();
+            List<Outcome> r = new ArrayList<Outcome>(calls.size());
+            for (Call c : calls) {
+                RPC rpc = receivers.get(c.service);
+                if (rpc==null) {
+                    rpc = Exports.of(ch).getReceiver(ch, c.service);
+                    if (rpc==null) {
+                        r.add(new Outcome(null, new UnsupportedOperationException(c.service+" is not available")));
+                        continue;
+                    }
+                    receivers.put(c.service, rpc);
+                }
+                r.add(RPCBatcher.receive(c, rpc));
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Performs a call of {@link CancellableRPC} on the receiver side,
+     * as a remoting request that can be cancelled unlike a call on an exported object.
+     */
+    private static class CallTask implements Callable<Object,Throwable> {
+        private final Class service;
+        private final String methodName;
+        private final List<Argument> arguments;
+        private final Set<Object> context;
+
+        private CallTask(Class service, String methodName, List<Argument> arguments, Set<Object> context) {
+            this.service = service;
+            this.methodName = methodName;
+            this.arguments = arguments;
+            this.context = context;
+        }
+
+        public Object call() throws Throwable {
+            Channel ch = Channel.current();
+            RPC rpc = Exports.of(ch).getReceiver(ch, service);
+            if (rpc==null)
+                throw new UnsupportedOperationException(service+" is not available");
+            return rpc.call(methodName, arguments, context);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * {@link CallTask} for {@link CancellableBinaryRPC}.
+     */
+    private static class BinaryCallTask implements Callable<Object,Throwable> {
+        private final Class service;
+        private final byte[] request;
+        private final List<Argument> arguments;
+
+        private BinaryCallTask(Class service, byte[] request, @CheckForNull List<Argument> arguments) {
+            this.service = service;
+            this.request = request;
+            this.arguments = arguments;
+        }
+
+        public Object call() throws Throwable {
+            Channel ch = Channel.current();
+            CallCodec codec = (CallCodec) ch.getProperty(RECEIVER_CODEC);
+            BinaryRPC rpc = codec!=null ? Exports.of(ch).getBinaryReceiver(ch, service, codec) : null;
+            if (rpc==null)
+                throw new UnsupportedOperationException(service+" is not available");
+            return rpc.call(request, arguments);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Drops the cached results on the calling side, upon the request from the receiver side.
+     */
+    private static class InvalidateTask implements Callable<Void,IOException> {
+        private final Class service;
+        private final String methodName;
+
+        private InvalidateTask(Class service, String methodName) {
+            this.service = service;
+            this.methodName = methodName;
+        }
+
+        public Void call() throws IOException {
+            Master m = Master.from(Channel.current());
+            if (m!=null)
+                RESULTS.invalidate(m.getPublicKeyString(), service, methodName);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Asks the given master to drop results of {@link Cacheable} methods that it has cached from this master.
+     *
+     * <p>
+     * Only masters that are connected through an {@link AbstractChannelBasedMasterImpl} are asked.
+     * Others, such as the ones that would connect on demand, aren't connected to begin with,
+     * and a master drops what it has cached from us when the connection closes, so there's nothing to invalidate.
+     */
+    /*package*/ static void pushInvalidation(Master m, Class<?> service, @CheckForNull String methodName) throws IOException {
+        if (!(m instanceof AbstractChannelBasedMasterImpl))
+            return;     // never connect just to invalidate
+        Channel ch = m.getChannel();
+        if (ch!=null && !ch.isInClosed() && !ch.isOutClosed())
+            ch.callAsync(new InvalidateTask(service, methodName));
+    }
+
+    /**
+     * Results of {@link Cacheable} methods of all the masters.
+     */
+    private static final ResultCache RESULTS = new ResultCache(Integer.getInteger(AbstractChannelBasedMasterImpl.class.getName()+".maxCachedResults", 10000));
+
+    /**
+     * Milliseconds to remember that a service isn't available on a master before asking again.
+     */
+    public static long MISS_TTL = Long.getLong(AbstractChannelBasedMasterImpl.class.getName()+".missTtl", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Time window in milliseconds in which calls from all threads to the same master are sent together.
+     * 0 disables this, and calls are only batched inside {@link #batch(java.util.concurrent.Callable)}.
+     */
+    public static long BATCH_WINDOW = Long.getLong(AbstractChannelBasedMasterImpl.class.getName()+".batchWindow", 0);
 }
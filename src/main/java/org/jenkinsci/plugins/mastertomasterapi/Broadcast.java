@@ -0,0 +1,239 @@
+package org.jenkinsci.plugins.mastertomasterapi;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import hudson.model.Computer;
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls all the connected masters (or some of them) in parallel, and collects the results.
+ *
+ * <pre>
+ * Broadcast.Results&lt;Integer> r = new Broadcast().withTimeout(10,SECONDS).call(new Broadcast.Task&lt;Integer>() {
+ *     public Integer call(Master m) throws Exception {
+ *         return m.getService(BuildTriggerService.class).trigger("foo");
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>
+ * Each master is given its own timeout, which starts when the call to that master starts,
+ * and at most the given number of masters are called at once. A slow or dead master therefore
+ * doesn't hold up calls to others, and it's reported as {@linkplain Results#getTimedOut() timed out}.
+ * The wait for a free slot is bounded by the {@linkplain #withTotalTimeout(long, TimeUnit) total timeout}, in case
+ * tasks hold on to their slots after they are cancelled. The masters that are still waiting by then aren't called,
+ * and they are reported as timed out, too.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class Broadcast {
+    private long timeout = DEFAULT_TIMEOUT;
+    private long totalTimeout = DEFAULT_TOTAL_TIMEOUT;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private Predicate<? super Master> filter = Predicates.alwaysTrue();
+
+    /**
+     * Work to be done against each master.
+     */
+    public interface Task<V> {
+        V call(Master master) throws Exception;
+    }
+
+    /**
+     * Sets the time each master is given to complete the task.
+     */
+    public Broadcast withTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the time the whole broadcast is given to start calling every master.
+     */
+    public Broadcast withTotalTimeout(long timeout, TimeUnit unit) {
+        this.totalTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of masters that are called at once.
+     */
+    public Broadcast withConcurrency(int concurrency) {
+        if (concurrency<1)
+            throw new IllegalArgumentException("concurrency must be positive: "+concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Only calls masters that satisfy the given predicate.
+     */
+    public Broadcast withFilter(Predicate<? super Master> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Runs the task against all the masters from all the {@link InterMasterConnection}s.
+     */
+    public <V> Results<V> call(Task<V> task) throws InterruptedException {
+        List<Master> masters = new ArrayList<Master>();
+        for (InterMasterConnection<?> imc : InterMasterConnection.all())
+            for (Master m : imc)
+                masters.add(m);
+        return call(masters, task);
+    }
+
+    /**
+     * Runs the task against the given masters, and waits until every one of them completes, fails, or times out.
+     */
+    public <V> Results<V> call(Iterable<? extends Master> masters, Task<V> task) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        List<PeerCall<V>> calls = new ArrayList<PeerCall<V>>();
+        List<Master> starved = new ArrayList<Master>();     // those that never got a permit
+        long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(totalTimeout);
+
+        try {
+            for (Master m : masters) {
+                if (!filter.apply(m))
+                    continue;
+
+                if (!starved.isEmpty() || !permits.tryAcquire(Math.max(0,deadline-System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    starved.add(m);
+                    continue;
+                }
+                PeerCall<V> c = new PeerCall<V>(m, task, permits);
+                calls.add(c);
+                Computer.threadPoolForRemoting.execute(c);
+                c.startTimer(timeout);
+            }
+        } catch (InterruptedException e) {
+            for (PeerCall<V> c : calls)
+                c.cancel(true);
+            throw e;
+        }
+
+        Results<V> r = new Results<V>();
+        for (PeerCall<V> c : calls) {
+            try {
+                r.values.put(c.master, c.get());
+            } catch (CancellationException e) {
+                r.timedOut.add(c.master);
+            } catch (ExecutionException e) {
+                r.failures.put(c.master, e.getCause());
+            }
+        }
+        r.timedOut.addAll(starved);
+        TIMER.purge();  // drop the timers cancelled above, instead of keeping them until they'd have gone off
+        return r;
+    }
+
+    /**
+     * Call to one master. It's cancelled when it runs out of time, and gives up the permit
+     * once the task has actually returned, which for a cancelled call can be well after the cancellation.
+     */
+    private static final class PeerCall<V> extends FutureTask<V> {
+        private final Master master;
+        private final Semaphore permits;
+        private final Runnable timeout = new Runnable() {
+            public void run() {
+                cancel(true);
+            }
+        };
+        /**
+         * Guarded by this.
+         */
+        private ScheduledFuture<?> timer;
+
+        PeerCall(final Master master, final Task<V> task, Semaphore permits) {
+            super(new Callable<V>() {
+                public V call() throws Exception {
+                    return task.call(master);
+                }
+            });
+            this.master = master;
+            this.permits = permits;
+        }
+
+        synchronized void startTimer(long millis) {
+            if (!isDone())
+                timer = TIMER.schedule(timeout, millis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        protected synchronized void done() {
+            if (timer!=null)
+                timer.cancel(false);
+        }
+    }
+
+    /**
+     * Outcome of a {@link Broadcast}, for each master that was called.
+     */
+    public static final class Results<V> {
+        private final Map<Master,V> values = new LinkedHashMap<Master,V>();
+        private final Map<Master,Throwable> failures = new LinkedHashMap<Master,Throwable>();
+        private final Set<Master> timedOut = new LinkedHashSet<Master>();
+
+        /**
+         * Masters that completed the task, and the values they returned.
+         */
+        public Map<Master,V> getValues() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        /**
+         * Masters that failed the task, and why.
+         */
+        public Map<Master,Throwable> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Masters that didn't complete the task in time.
+         */
+        public Set<Master> getTimedOut() {
+            return Collections.unmodifiableSet(timedOut);
+        }
+
+        /**
+         * True if every master completed the task successfully.
+         */
+        public boolean isComplete() {
+            return failures.isEmpty() && timedOut.isEmpty();
+        }
+    }
+
+    public static long DEFAULT_TIMEOUT = Long.getLong(Broadcast.class.getName()+".timeout", TimeUnit.SECONDS.toMillis(30));
+
+    public static long DEFAULT_TOTAL_TIMEOUT = Long.getLong(Broadcast.class.getName()+".totalTimeout", TimeUnit.MINUTES.toMillis(5));
+
+    public static int DEFAULT_CONCURRENCY = Integer.getInteger(Broadcast.class.getName()+".concurrency", 16);
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory());
+}
@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.mastertomasterapi;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Receiving end of {@link Master#transfer(java.io.File, long, TransferTicket)}.
+ *
+ * <p>
+ * A master that wants to receive data from another master calls {@link #expect(OutputStream)},
+ * and passes the resulting ticket to the sender, for example as the return value of a service method.
+ * The sender then uses the ticket to send the data, and the stream is closed when the transfer completes.
+ * To resume an interrupted transfer, the receiver opens the stream in the append mode, and tells the sender
+ * how many bytes it already has.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class BulkTransfer {
+    private BulkTransfer() {} // no instantiation please
+
+    /**
+     * How long a ticket stays valid, in milliseconds.
+     */
+    public static final long TICKET_TIMEOUT = Long.getLong(BulkTransfer.class.getName()+".ticketTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * Tickets that are issued but not used yet.
+     * Streams of the tickets that are not used in time are closed.
+     */
+    private static final Cache<String,OutputStream> sinks = CacheBuilder.newBuilder()
+            .expireAfterWrite(TICKET_TIMEOUT, TimeUnit.MILLISECONDS)
+            .removalListener(new RemovalListener<String,OutputStream>() {
+                public void onRemoval(RemovalNotification<String,OutputStream> n) {
+                    if (n.wasEvicted()) {
+                        try {
+                            n.getValue().close();
+                        } catch (IOException e) {
+                            LOGGER.log(FINE, "Failed to close an unused transfer target", e);
+                        }
+                    }
+                }
+            })
+            .build();
+
+    /**
+     * Registers a stream to receive data from another master.
+     */
+    public static TransferTicket expect(OutputStream sink) {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        String id = Util.toHexString(b);
+        sinks.put(id, sink);
+        return new TransferTicket(id);
+    }
+
+    /**
+     * Takes out the stream the ticket of the given ID is for. A ticket can be only used once.
+     *
+     * @return null if there's no such ticket, or if it's already used or expired.
+     */
+    @CheckForNull
+    public static OutputStream claim(String id) {
+        return sinks.asMap().remove(id);
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Logger LOGGER = Logger.getLogger(BulkTransfer.class.getName());
+}
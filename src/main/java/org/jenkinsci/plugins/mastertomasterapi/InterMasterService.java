@@ -4,10 +4,15 @@ import hudson.ExtensionList;
 import hudson.ExtensionPoint;
 import hudson.remoting.Channel;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.Cacheable;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.LocalCall;
 import org.jenkinsci.plugins.mastertomasterapi.proxy.RPC;
 
 import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
 
 /**
  * An extension point for exposing inter-master service over {@link Master#getService(Class)}.
@@ -34,7 +39,34 @@ public abstract class InterMasterService implements ExtensionPoint {
     @CheckForNull
     public abstract <T> T getInstance(Class<T> interfaceType, Master remote);
 
+    /**
+     * Tells all the connected masters to drop the results of {@link Cacheable} methods of the given service
+     * that they've cached from this master, because the data behind them has changed.
+     *
+     * This is asynchronous, and masters that can't be reached are ignored.
+     */
+    public static void invalidateCaches(Class<?> interfaceType) {
+        invalidateCaches(interfaceType, null);
+    }
+
+    /**
+     * Like {@link #invalidateCaches(Class)} but only for methods of the given name.
+     */
+    public static void invalidateCaches(Class<?> interfaceType, @CheckForNull String methodName) {
+        for (InterMasterConnection<?> imc : InterMasterConnection.all()) {
+            for (Master m : imc) {
+                try {
+                    AbstractChannelBasedMasterImpl.pushInvalidation(m, interfaceType, methodName);
+                } catch (IOException e) {
+                    LOGGER.log(FINE, "Failed to invalidate caches on "+m.getURL(), e);
+                }
+            }
+        }
+    }
+
     public static ExtensionList<InterMasterService> all() {
         return Jenkins.getInstance().getExtensionList(InterMasterService.class);
     }
+
+    private static final Logger LOGGER = Logger.getLogger(InterMasterService.class.getName());
 }
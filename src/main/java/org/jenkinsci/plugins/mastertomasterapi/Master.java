@@ -3,14 +3,20 @@ package org.jenkinsci.plugins.mastertomasterapi;
 import hudson.Util;
 import hudson.model.ModelObject;
 import hudson.remoting.Base64;
+import hudson.remoting.Callable;
 import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
 import org.jenkinsci.main.modules.instance_identity.InstanceIdentity;
 
 import javax.annotation.CheckForNull;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.security.PublicKey;
+import java.util.concurrent.Future;
 
 /**
  * Represents a connection to another master.
@@ -53,6 +59,16 @@ public abstract class Master implements ModelObject {
     @CheckForNull
     public abstract Channel getChannel();
 
+    /**
+     * Channel for {@linkplain org.jenkinsci.plugins.mastertomasterapi.proxy.Bulk bulk} traffic, which is kept apart
+     * from {@link #getChannel()} so that big or slow calls don't delay the others.
+     * The default implementation has no separate channel and returns {@link #getChannel()}.
+     */
+    @CheckForNull
+    public Channel getBulkChannel() {
+        return getChannel();
+    }
+
     public abstract URL getURL();
 
     /**
@@ -66,6 +82,117 @@ public abstract class Master implements ModelObject {
     @CheckForNull
     public abstract <T> T getService(Class<T> type);
 
+    /**
+     * Resolves the given services ahead of time, so that subsequent {@link #getService(Class)} calls
+     * for them return right away. Implementations that can resolve many services in one round trip
+     * override this method. Services that aren't available aren't reported here.
+     */
+    public void prefetchServices(Class<?>... types) throws IOException, InterruptedException {
+        for (Class<?> t : types)
+            getService(t);
+    }
+
+    /**
+     * Asynchronous version of {@link #getService(Class)}.
+     *
+     * <p>
+     * Methods on the returned proxy send the call and return a {@link Future} right away, without
+     * tying up the calling thread for the round trip, so that many calls can be outstanding at once.
+     *
+     * <pre>
+     * interface BuildTriggerService { int trigger(String job); }
+     * interface AsyncBuildTriggerService { Future&lt;Integer> trigger(String job); }
+     *
+     * AsyncBuildTriggerService bts = master.getAsyncService(BuildTriggerService.class, AsyncBuildTriggerService.class);
+     * </pre>
+     *
+     * @param type
+     *      Interface that represents the contract, as in {@link #getService(Class)}.
+     * @param asyncView
+     *      Interface that mirrors the methods of {@code type}, except that each method returns
+     *      {@link Future} of the original return type.
+     * @return
+     *      null if the service is not available on this master.
+     * @throws UnsupportedOperationException
+     *      if the transport to this master doesn't support asynchronous calls.
+     */
+    @CheckForNull
+    public <T> T getAsyncService(Class<?> type, Class<T> asyncView) {
+        throw new UnsupportedOperationException(getClass()+" doesn't support asynchronous calls");
+    }
+
+    /**
+     * Runs the given code while collecting calls made to services of this master,
+     * and sends them in as few requests as possible, in the order they were made.
+     *
+     * <p>
+     * This is most effective with {@linkplain #getAsyncService(Class, Class) asynchronous services},
+     * as a synchronous call needs its result right away and therefore sends the calls collected so far.
+     * Implementations that can't batch calls simply run the code.
+     *
+     * @return
+     *      whatever the body returns.
+     */
+    public <V> V batch(java.util.concurrent.Callable<V> body) throws Exception {
+        return body.call();
+    }
+
+    /**
+     * Sends the contents of a local file to another master, into the stream the given ticket is for.
+     *
+     * <p>
+     * The default implementation pushes the data through {@link #getBulkChannel()}.
+     * Implementations can override this to use a more efficient transport.
+     *
+     * @param offset
+     *      Number of bytes at the beginning of the file to skip, for resuming a transfer that was interrupted.
+     * @param ticket
+     *      Obtained by the receiving master through {@link BulkTransfer#expect(OutputStream)}.
+     */
+    public TransferReport transfer(File source, long offset, TransferTicket ticket) throws IOException, InterruptedException {
+        Channel ch = getBulkChannel();
+        if (ch==null)
+            throw new IOException("No channel to "+getURL());
+
+        long start = System.nanoTime();
+        OutputStream out = ch.call(new OpenSinkTask(ticket.getId()));
+        RandomAccessFile f = new RandomAccessFile(source,"r");
+        long total = 0;
+        try {
+            f.seek(offset);
+            byte[] buf = new byte[64*1024];
+            int len;
+            while ((len=f.read(buf))>=0) {
+                out.write(buf,0,len);
+                total += len;
+            }
+        } finally {
+            f.close();
+            out.close();
+        }
+        return new TransferReport(total, System.nanoTime()-start, "channel");
+    }
+
+    private static class OpenSinkTask implements Callable<OutputStream,IOException> {
+        private final String id;
+
+        private OpenSinkTask(String id) {
+            this.id = id;
+        }
+
+        public OutputStream call() throws IOException {
+            OutputStream s = BulkTransfer.claim(id);
+            if (s==null)
+                throw new IOException("No such transfer ticket, or it's already been used");
+            Master m = from(Channel.current());
+            if (m instanceof AbstractChannelBasedMasterImpl)
+                s = ((AbstractChannelBasedMasterImpl) m).tracking(s);
+            return new RemoteOutputStream(s);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * If a given channel connects to another master, returns the {@link Master} instance
      * that represents it. Otherwise this method returns null.
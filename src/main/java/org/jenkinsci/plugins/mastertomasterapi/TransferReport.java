@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.mastertomasterapi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of a completed {@link Master#transfer(java.io.File, long, TransferTicket)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TransferReport {
+    private final long bytes;
+    private final long nanos;
+    private final String method;
+
+    public TransferReport(long bytes, long nanos, String method) {
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.method = method;
+    }
+
+    /**
+     * Number of bytes transferred.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getTime(TimeUnit unit) {
+        return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getBytesPerSecond() {
+        return nanos==0 ? 0 : (long)(bytes*1e9/nanos);
+    }
+
+    /**
+     * Human readable description of how the bytes got transferred.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String toString() {
+        return bytes+" bytes in "+getTime(TimeUnit.MILLISECONDS)+"ms ("+getBytesPerSecond()/1024+"KB/s) via "+method;
+    }
+}
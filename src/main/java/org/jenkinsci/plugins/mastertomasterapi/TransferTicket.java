@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.mastertomasterapi;
+
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Permission to send data into an {@link OutputStream} on another master, as issued by {@link BulkTransfer#expect(OutputStream)}.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see Master#transfer(java.io.File, long, TransferTicket)
+ */
+public final class TransferTicket implements Serializable {
+    /**
+     * Random secret that identifies the transfer. Whoever knows it can write into the stream.
+     */
+    private final String id;
+
+    /*package*/ TransferTicket(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,37 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import org.acegisecurity.Authentication;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of {@link RPC}.
+ *
+ * Each instance of {@link AsyncRPC} represents a specific receiver. Unlike {@link RPC},
+ * the caller gets the control back as soon as the call is sent, and the calling thread
+ * does not wait for the receiver to complete the call.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see TypeSafeProxy#createAsync(Class, AsyncRPC)
+ */
+public interface AsyncRPC {
+    /**
+     * @param methodName
+     *      Name of the method to invoke. Matches {@link Method#getName()}
+     * @param arguments
+     *      Ordered list of arguments and their related type information.
+     * @param context
+     *      Any other contextual information regarding this call, such as the {@link Authentication} object
+     *      that establishes the identity of the caller.
+     *
+     * @return
+     *      Future that receives the return value from the RPC method, or the exception it has thrown.
+     * @throws IOException
+     *      If the call couldn't be sent to the receiver.
+     */
+    Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException;
+}
@@ -1,5 +1,8 @@
 package org.jenkinsci.plugins.mastertomasterapi.proxy;
 
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import hudson.security.ACL;
 import jenkins.model.Jenkins;
 import org.acegisecurity.Authentication;
@@ -8,10 +11,19 @@ import org.acegisecurity.GrantedAuthorityImpl;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 
+import javax.annotation.CheckForNull;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A pair of {@link RPC} filter objects that allows the caller and the receiver to pass the thread-local
@@ -20,6 +32,11 @@ import java.util.Set;
  * To use this, wrap the caller side of the {@link RPC} chain with {@link #sender(RPC)}, and the receiver
  * side of the {@link RPC} chain with {@link #receiver(RPC)}
  *
+ * <p>
+ * When the same connection carries many calls, use the variants that take {@link SenderSession} and
+ * {@link ReceiverSession} instead. They send each distinct authentication over only once per session,
+ * and then refer to it by a numeric token.
+ *
  * @author Kohsuke Kawaguchi
  * @see Jenkins#getAuthentication()
  */
@@ -29,17 +46,135 @@ public abstract class AuthenticationForwardingRPC {
     public static RPC sender(final RPC receiver) {
         return new RPC() {
             public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
-                Authentication a = Jenkins.getAuthentication();
+                return receiver.call(methodName,arguments,forward(context));
+            }
+        };
+    }
+
+    /**
+     * {@link AsyncRPC} version of {@link #sender(RPC)}.
+     *
+     * The authentication is captured from the thread that makes the call, not the one that completes it.
+     */
+    public static AsyncRPC sender(final AsyncRPC receiver) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                return receiver.callAsync(methodName,arguments,forward(context));
+            }
+        };
+    }
+
+    /**
+     * Forwards the authentication by a token registered in the given session.
+     *
+     * The receiver side needs to use {@link #receiver(RPC, ReceiverSession)}.
+     */
+    public static RPC sender(final RPC receiver, final SenderSession session) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                Identity id = new Identity(Jenkins.getAuthentication());
+                Registration r = session.get(id);
+                if (r.confirmed) {
+                    try {
+                        return receiver.call(methodName,arguments,with(context,new AuthenticationToken(r.token,null)));
+                    } catch (UnknownTokenException e) {
+                        session.forget(id,r);   // the receiver has lost it. register it again
+                        r = session.get(id);
+                    }
+                }
+
+                try {
+                    return receiver.call(methodName,arguments,register(context,id,r));
+                } finally {
+                    // the receiver registers the token before it dispatches the call, so it's most likely
+                    // got it even if the call failed. If not, it tells us next time and we register again
+                    r.confirmed = true;
+                }
+            }
+        };
+    }
 
-                context = new HashSet<Object>(context);
-                context.add(new ForwardedAuthentication(a));
+    /**
+     * {@link AsyncRPC} version of {@link #sender(RPC, SenderSession)}.
+     */
+    public static AsyncRPC sender(final AsyncRPC receiver, final SenderSession session) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(final String methodName, final List<Argument> arguments, final Set<Object> context) throws IOException {
+                final Identity id = new Identity(Jenkins.getAuthentication());
+                final Registration r = session.get(id);
+                if (!r.confirmed)
+                    return confirmOnCompletion(receiver.callAsync(methodName,arguments,register(context,id,r)),r);
 
-                return receiver.call(methodName,arguments,context);
+                Future<Object> f = receiver.callAsync(methodName,arguments,with(context,new AuthenticationToken(r.token,null)));
+                return new RetryingFuture(f) {
+                    @Override
+                    Future<Object> retry() throws IOException {
+                        session.forget(id,r);
+                        Registration n = session.get(id);
+                        return confirmOnCompletion(receiver.callAsync(methodName,arguments,register(context,id,n)),n);
+                    }
+                };
             }
         };
     }
 
-    public static RPC receiver(final RPC receiver) {
+    /**
+     * Marks the registration as confirmed once the call completes, successfully or not, for the same reason as the synchronous version.
+     */
+    private static Future<Object> confirmOnCompletion(Future<Object> f, final Registration r) {
+        return new RetryingFuture(f) {
+            @Override
+            Object done(Object v) {
+                r.confirmed = true;
+                return v;
+            }
+
+            @Override
+            ExecutionException failed(ExecutionException e) {
+                r.confirmed = true;
+                return e;
+            }
+        };
+    }
+
+    /**
+     * Adds the authentication of the current thread to the context.
+     */
+    private static Set<Object> forward(Set<Object> context) {
+        return with(context, new ForwardedAuthentication(Jenkins.getAuthentication()));
+    }
+
+    /**
+     * Adds the authentication of the current thread to the context along with its registration as a token.
+     * The authentication itself is also added as is, so that receivers that don't understand tokens
+     * still see the caller.
+     */
+    private static Set<Object> register(Set<Object> context, Identity id, Registration r) {
+        ForwardedAuthentication a = new ForwardedAuthentication(id.authentication);
+        context = new HashSet<Object>(context);
+        context.add(a);
+        context.add(new AuthenticationToken(r.token,a));   // 'a' is serialized only once
+        return context;
+    }
+
+    private static Set<Object> with(Set<Object> context, Object o) {
+        if (context.isEmpty())
+            return Collections.singleton(o);
+        context = new HashSet<Object>(context);
+        context.add(o);
+        return context;
+    }
+
+    public static RPC receiver(RPC receiver) {
+        return receiver(receiver,null);
+    }
+
+    /**
+     * @param session
+     *      Keeps the authentications registered by {@link #sender(RPC, SenderSession)}.
+     *      Can be null, in which case tokens are only understood along with their registrations.
+     */
+    public static RPC receiver(final RPC receiver, @CheckForNull final ReceiverSession session) {
        return new RPC() {
            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
                Authentication a = find(context);
@@ -55,19 +190,238 @@ public abstract class AuthenticationForwardingRPC {
            /**
             * Finds authentication object from the context.
             */
-           private Authentication find(Set<Object> context) {
+           private Authentication find(Set<Object> context) throws UnknownTokenException {
+               Authentication forwarded = null;
                for (Object c : context) {
+                   if (c instanceof AuthenticationToken) {
+                       AuthenticationToken t = (AuthenticationToken) c;
+                       if (t.registration!=null) {
+                           if (session!=null)
+                               session.tokens.put(t.token,t.registration);
+                           return t.registration;
+                       }
+
+                       Authentication a = session!=null ? session.tokens.getIfPresent(t.token) : null;
+                       if (a==null)
+                           throw new UnknownTokenException(t.token);
+                       return a;
+                   }
                    if (c instanceof ForwardedAuthentication) {
-                       return (Authentication) c;
+                       forwarded = (Authentication) c;
                    }
                }
 
+               if (forwarded!=null)
+                   return forwarded;
+
                // fall back
                return Jenkins.ANONYMOUS;
            }
        };
     }
 
+    /**
+     * Sender side of the tokens, which should be scoped to a single connection.
+     *
+     * Like {@link ReceiverSession}, this only remembers a bounded number of authentications, and forgets those that
+     * haven't been used for {@link #TOKEN_IDLE_TIMEOUT}. A forgotten one gets a new token, which is registered again.
+     */
+    public static final class SenderSession {
+        private final ConcurrentMap<Identity,Registration> registrations = CacheBuilder.newBuilder()
+                .maximumSize(MAX_TOKENS).expireAfterAccess(TOKEN_IDLE_TIMEOUT, TimeUnit.MILLISECONDS)
+                .<Identity,Registration>build().asMap();
+        private final AtomicLong counter = new AtomicLong();
+
+        private Registration get(Identity id) {
+            Registration r = registrations.get(id);
+            if (r==null) {
+                r = new Registration(counter.incrementAndGet());
+                Registration prev = registrations.putIfAbsent(id,r);
+                if (prev!=null)     r = prev;
+            }
+            return r;
+        }
+
+        private void forget(Identity id, Registration r) {
+            registrations.remove(id,r);
+        }
+
+        /**
+         * Forgets all the tokens, for example because the connection is gone.
+         */
+        public void invalidate() {
+            registrations.clear();
+        }
+    }
+
+    /**
+     * Receiver side of the tokens, which should be scoped to a single connection.
+     *
+     * Only a bounded number of tokens are remembered. The sender registers again any token that's been forgotten.
+     */
+    public static final class ReceiverSession {
+        private final Cache<Long,Authentication> tokens = CacheBuilder.newBuilder().maximumSize(MAX_TOKENS).build();
+
+        /**
+         * Forgets all the tokens, for example because the connection is gone.
+         */
+        public void invalidate() {
+            tokens.invalidateAll();
+        }
+    }
+
+    /**
+     * Distinct authentication as far as the receiver is concerned, which is everything {@link ForwardedAuthentication} carries.
+     * {@link ResultCache} tells the callers apart by this, too.
+     */
+    static final class Identity {
+        private final Authentication authentication;
+        private final String name;
+        private final Object principal;
+        private final Set<String> authorities = new HashSet<String>();
+
+        Identity(Authentication a) {
+            this.authentication = a;
+            this.name = a.getName();
+            this.principal = a.getPrincipal();
+            for (GrantedAuthority ga : a.getAuthorities())
+                authorities.add(ga.getAuthority());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Identity))   return false;
+            Identity that = (Identity) o;
+            return name.equals(that.name) && authorities.equals(that.authorities) && Objects.equal(principal, that.principal);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode()*31+authorities.hashCode();
+        }
+    }
+
+    private static final class Registration {
+        private final long token;
+        /**
+         * Set to true once the receiver is known to have seen the registration.
+         */
+        private volatile boolean confirmed;
+
+        private Registration(long token) {
+            this.token = token;
+        }
+    }
+
+    /**
+     * Refers to an authentication registered in the session, and registers it if {@link #registration} is non-null.
+     *
+     * {@link CompactCodec} encodes the tokens without registrations by itself.
+     */
+    static final class AuthenticationToken implements Serializable {
+        final long token;
+        final @CheckForNull ForwardedAuthentication registration;
+
+        AuthenticationToken(long token, ForwardedAuthentication registration) {
+            this.token = token;
+            this.registration = registration;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Thrown by the receiver when it doesn't know the token, so that the sender can register it again.
+     */
+    public static final class UnknownTokenException extends Exception {
+        private UnknownTokenException(long token) {
+            super("Unknown authentication token: "+token);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Wraps an asynchronous call to post-process its return value, or to make the call again
+     * if the receiver didn't know the token.
+     */
+    private static abstract class RetryingFuture implements Future<Object> {
+        private volatile Future<Object> f;
+        private volatile boolean retried;
+
+        RetryingFuture(Future<Object> f) {
+            this.f = f;
+        }
+
+        Future<Object> retry() throws IOException {
+            return null;
+        }
+
+        Object done(Object v) {
+            return v;
+        }
+
+        ExecutionException failed(ExecutionException e) {
+            return e;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            try {
+                return done(f.get());
+            } catch (ExecutionException e) {
+                if (!retryOn(e))
+                    throw failed(e);
+            }
+            try {
+                return done(f.get());
+            } catch (ExecutionException e) {
+                throw failed(e);
+            }
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long end = System.nanoTime()+unit.toNanos(timeout);
+            try {
+                return done(f.get(timeout,unit));
+            } catch (ExecutionException e) {
+                if (!retryOn(e))
+                    throw failed(e);
+            }
+            try {
+                return done(f.get(Math.max(0,end-System.nanoTime()),TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                throw failed(e);
+            }
+        }
+
+        private synchronized boolean retryOn(ExecutionException e) throws ExecutionException {
+            if (!(e.getCause() instanceof UnknownTokenException) || retried)
+                return false;
+            retried = true;
+            try {
+                Future<Object> n = retry();
+                if (n==null)
+                    return false;
+                f = n;
+                return true;
+            } catch (IOException x) {
+                throw new ExecutionException(x);
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return f.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return f.isCancelled();
+        }
+
+        public boolean isDone() {
+            return f.isDone();
+        }
+    }
+
     private static final class ForwardedAuthentication implements Authentication, Serializable {
         private final String name;
         private final Object principal;
@@ -112,4 +466,14 @@ public abstract class AuthenticationForwardingRPC {
 
         private static final long serialVersionUID = 1L;
     }
+
+    /**
+     * Maximum number of tokens a {@link SenderSession} or a {@link ReceiverSession} remembers.
+     */
+    public static int MAX_TOKENS = Integer.getInteger(AuthenticationForwardingRPC.class.getName()+".maxTokens", 256);
+
+    /**
+     * Milliseconds after which a {@link SenderSession} forgets an authentication that hasn't been forwarded.
+     */
+    public static long TOKEN_IDLE_TIMEOUT = Long.getLong(AuthenticationForwardingRPC.class.getName()+".tokenIdleTimeout", TimeUnit.MINUTES.toMillis(30));
 }
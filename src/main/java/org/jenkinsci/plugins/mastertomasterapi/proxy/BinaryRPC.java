@@ -0,0 +1,22 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import javax.annotation.CheckForNull;
+import java.util.List;
+
+/**
+ * {@link RPC} whose calls are encoded by a {@link CallCodec}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public interface BinaryRPC {
+    /**
+     * @param request
+     *      Encoded call.
+     * @param arguments
+     *      If the codec couldn't encode the arguments, they are passed here as is. Otherwise null.
+     * @return
+     *      Encoded return value as {@code byte[]}, or some other object that the codec uses to pass
+     *      a return value it couldn't encode.
+     */
+    Object call(byte[] request, @CheckForNull List<Argument> arguments) throws Throwable;
+}
@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method on a service interface, or all the methods of it, as one that moves a lot of data
+ * or takes a long time, which shouldn't hold up the other calls to the same master.
+ *
+ * <p>
+ * If the transport to the master has a separate {@linkplain org.jenkinsci.plugins.mastertomasterapi.Master#getBulkChannel() bulk channel},
+ * calls to such methods go over there, and the calls to the other methods keep going over the regular channel
+ * without waiting behind them. Otherwise this makes no difference.
+ *
+ * <p>
+ * Only the synchronous proxies from {@link org.jenkinsci.plugins.mastertomasterapi.Master#getService(Class)} honor this.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Bulk {
+}
@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a method on a service interface as a read-only lookup whose result can be reused
+ * by the caller for the given amount of time.
+ *
+ * <p>
+ * Results are cached by the calling master for each combination of the master, the arguments, and the
+ * {@linkplain jenkins.model.Jenkins#getAuthentication() identity} of the caller. The arguments therefore need to
+ * implement {@link Object#equals(Object)} and {@link Object#hashCode()} properly. The serving master can drop
+ * the cached results before they expire by calling {@link org.jenkinsci.plugins.mastertomasterapi.InterMasterService#invalidateCaches(Class)}.
+ *
+ * <p>
+ * Only the synchronous proxies from {@link org.jenkinsci.plugins.mastertomasterapi.Master#getService(Class)} use the cache.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+    /**
+     * How long the result stays valid.
+     */
+    long value();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes {@link RPC} calls into a form that's cheaper to transfer than what the transport would do on its own.
+ *
+ * <p>
+ * An instance is created for each side of a connection once the two sides agree on the {@linkplain #getName() codec},
+ * and it can keep state that lives as long as the connection, such as the dictionary of names sent so far.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class CallCodec {
+    /**
+     * Name that identifies the codec and its version during the negotiation.
+     */
+    public abstract String getName();
+
+    /**
+     * Wraps the caller side of the {@link RPC} chain.
+     */
+    public abstract RPC sender(BinaryRPC receiver);
+
+    /**
+     * Wraps the receiver side of the {@link RPC} chain.
+     */
+    public abstract BinaryRPC receiver(RPC receiver);
+
+    /**
+     * Names of the codecs this side can use, in the order of preference.
+     */
+    public static List<String> getSupportedNames() {
+        if (Boolean.getBoolean(CallCodec.class.getName()+".disabled"))
+            return Collections.emptyList();
+        return Collections.singletonList(CompactCodec.NAME);
+    }
+
+    /**
+     * Creates a new instance of the codec of the given name for a connection.
+     *
+     * @param classLoader
+     *      Used to resolve classes in the decoded calls.
+     * @return
+     *      null if no such codec is supported.
+     */
+    public static CallCodec create(String name, ClassLoader classLoader) {
+        if (!getSupportedNames().contains(name))
+            return null;
+        if (name.equals(CompactCodec.NAME))
+            return new CompactCodec(classLoader);
+        return null;
+    }
+
+    /**
+     * Picks the first of the given codecs that this side supports.
+     *
+     * @return null if there's none.
+     */
+    public static String choose(List<String> offered) {
+        List<String> supported = getSupportedNames();
+        for (String n : offered)
+            if (supported.contains(n))
+                return n;
+        return null;
+    }
+}
@@ -0,0 +1,505 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import hudson.remoting.ObjectInputStreamEx;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.AuthenticationToken;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.DeadlineRPC.Deadline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CallCodec} that encodes calls in a compact binary form.
+ *
+ * <p>
+ * Method names, argument names and argument types are sent through a dictionary that lives as long as
+ * the connection. A name is sent in full along with its ID until the receiver acknowledges it, and only
+ * by its ID after that. Primitives, strings, byte arrays, and lists, sets and maps of those are
+ * encoded natively.
+ *
+ * <p>
+ * Calls whose arguments can't be encoded natively, and return values that can't be encoded natively,
+ * are passed as is to the transport, so that objects that rely on the transport's own serialization
+ * (such as exported objects) keep working. The context of a call only holds small objects of
+ * the {@link RPC} filters. {@link Deadline}s and authentication tokens are encoded natively, and
+ * the rest are Java-serialized.
+ *
+ * <p>
+ * Every length and count read from a frame is checked against the bytes left in that frame before
+ * anything is allocated for it, so a corrupt frame fails with {@link StreamCorruptedException}
+ * instead of exhausting the memory.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class CompactCodec extends CallCodec {
+    public static final String NAME = "compact-2";
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Sender side of the dictionary. Guarded by itself.
+     */
+    private final Map<String,Integer> ids = new HashMap<String,Integer>();
+    /**
+     * IDs up to this one are known to have been received by the receiver.
+     */
+    private volatile int confirmed;
+
+    /**
+     * Receiver side of the dictionary.
+     */
+    private final ConcurrentMap<Integer,String> names = new ConcurrentHashMap<Integer,String>();
+    /**
+     * IDs up to this one have all been received. Guarded by {@link #names}.
+     */
+    private int contiguous;
+
+    private final ConcurrentMap<String,Class> classes = new ConcurrentHashMap<String,Class>();
+
+    public CompactCodec(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public RPC sender(final BinaryRPC receiver) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                boolean encodeArgs = true;
+                for (Argument a : arguments)
+                    encodeArgs &= isNative(a.value);
+
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(buf);
+                writeName(out, methodName);
+                out.writeBoolean(encodeArgs);
+                if (encodeArgs) {
+                    writeVarInt(out, arguments.size());
+                    for (Argument a : arguments) {
+                        writeName(out, a.type==null ? null : a.type.getName());
+                        writeName(out, a.name);
+                        writeValue(out, a.value);
+                    }
+                }
+                writeValue(out, context);
+                out.flush();
+
+                byte[] request = buf.toByteArray();
+                Object r = receiver.call(request, encodeArgs ? null : arguments);
+                if (r instanceof Unencoded) {
+                    RPCMetrics.transferred(request.length, 0);
+                    return ((Unencoded)r).value;
+                }
+
+                byte[] response = (byte[])r;
+                RPCMetrics.transferred(request.length, response.length);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+                confirm(readVarInt(in));
+                return readValue(in);
+            }
+        };
+    }
+
+    @Override
+    public BinaryRPC receiver(final RPC receiver) {
+        return new BinaryRPC() {
+            public Object call(byte[] request, List<Argument> arguments) throws Throwable {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+                String methodName = readName(in);
+                if (in.readBoolean()) {
+                    int n = readLength(in, 3);   // two names and a value tag per argument
+                    arguments = new ArrayList<Argument>(n);
+                    for (int i=0; i<n; i++) {
+                        Class type = toClass(readName(in));
+                        String name = readName(in);
+                        arguments.add(new Argument(type, name, readValue(in)));
+                    }
+                }
+                Set<Object> context = readContext(in);
+
+                RPCMetrics.Sample sample = RPCMetrics.receiving(request.length);
+                long responseBytes = 0;
+                try {
+                    Object v = receiver.call(methodName, arguments, context);
+                    if (!isNative(v))
+                        return new Unencoded(v);
+
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(buf);
+                    synchronized (names) {
+                        writeVarInt(out, contiguous);
+                    }
+                    writeValue(out, v);
+                    out.flush();
+                    byte[] response = buf.toByteArray();
+                    responseBytes = response.length;
+                    return response;
+                } finally {
+                    sample.close(responseBytes);
+                }
+            }
+        };
+    }
+
+    private void writeName(DataOutputStream out, String s) throws IOException {
+        if (s==null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        int id;
+        synchronized (ids) {
+            Integer i = ids.get(s);
+            if (i==null)
+                ids.put(s, i=ids.size()+1);
+            id = i;
+        }
+
+        if (id<=confirmed) {
+            writeVarInt(out, id<<1);
+        } else {
+            // the receiver might not know it yet
+            writeVarInt(out, (id<<1)|1);
+            writeString(out, s);
+        }
+    }
+
+    private String readName(DataInputStream in) throws IOException {
+        int v = readVarInt(in);
+        if (v==0)   return null;
+
+        int id = v>>>1;
+        if ((v&1)!=0) {
+            String s = readString(in);
+            synchronized (names) {
+                names.put(id, s);
+                while (names.containsKey(contiguous+1))
+                    contiguous++;
+            }
+            return s;
+        }
+
+        String s = names.get(id);
+        if (s==null)
+            throw new StreamCorruptedException("Undefined name ID: "+id);
+        return s;
+    }
+
+    private synchronized void confirm(int ack) {
+        if (ack>confirmed)
+            confirmed = ack;
+    }
+
+    private Class toClass(String name) throws ClassNotFoundException {
+        if (name==null)     return null;
+        Class c = PRIMITIVES.get(name);
+        if (c==null)    c = classes.get(name);
+        if (c==null) {
+            c = Class.forName(name, false, classLoader);
+            classes.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * Can the value be encoded without resorting to the Java serialization?
+     */
+    private static boolean isNative(Object v) {
+        if (v==null || v instanceof String || v instanceof byte[])
+            return true;
+        Class c = v.getClass();
+        if (WRAPPERS.containsKey(c))
+            return true;
+        if (LISTS.contains(c) || SETS.contains(c)) {
+            for (Object o : (Collection) v)
+                if (!isNative(o))
+                    return false;
+            return true;
+        }
+        if (MAPS.contains(c)) {
+            for (Entry e : ((Map<?,?>) v).entrySet())
+                if (!isNative(e.getKey()) || !isNative(e.getValue()))
+                    return false;
+            return true;
+        }
+        return false;
+    }
+
+    private void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v==null) {
+            out.writeByte(NULL);
+        } else
+        if (v instanceof String) {
+            out.writeByte(STRING);
+            writeString(out,(String)v);
+        } else
+        if (v instanceof Integer) {
+            out.writeByte(INT);
+            writeVarInt(out,zigzag((Integer) v));
+        } else
+        if (v instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out,zigzag((Long) v));
+        } else
+        if (v instanceof Boolean) {
+            out.writeByte((Boolean)v ? TRUE : FALSE);
+        } else
+        if (v instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)v);
+        } else
+        if (v instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float)v);
+        } else
+        if (v instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short)v);
+        } else
+        if (v instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte)v);
+        } else
+        if (v instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character)v);
+        } else
+        if (v instanceof byte[]) {
+            byte[] b = (byte[]) v;
+            out.writeByte(BYTES);
+            writeVarInt(out,b.length);
+            out.write(b);
+        } else
+        if (LISTS.contains(v.getClass()) || SETS.contains(v.getClass())) {
+            Collection c = (Collection) v;
+            out.writeByte(LISTS.contains(v.getClass()) ? LIST : SET);
+            writeVarInt(out,c.size());
+            for (Object o : c)
+                writeValue(out,o);
+        } else
+        if (MAPS.contains(v.getClass())) {
+            Map<?,?> m = (Map) v;
+            out.writeByte(MAP);
+            writeVarInt(out,m.size());
+            for (Entry e : m.entrySet()) {
+                writeValue(out,e.getKey());
+                writeValue(out,e.getValue());
+            }
+        } else
+        if (v instanceof Deadline) {
+            out.writeByte(DEADLINE);
+            writeVarLong(out,zigzag(((Deadline)v).remaining(TimeUnit.NANOSECONDS)));
+        } else
+        if (v instanceof AuthenticationToken && ((AuthenticationToken)v).registration==null) {
+            // registrations are rare and carry an arbitrary principal, so they are left to the serialization
+            out.writeByte(TOKEN);
+            writeVarLong(out,((AuthenticationToken)v).token);
+        } else {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(buf);
+            oos.writeObject(v);
+            oos.close();
+            out.writeByte(SERIALIZED);
+            writeVarInt(out,buf.size());
+            buf.writeTo(out);
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        int tag = in.readByte();
+        switch (tag) {
+        case NULL:      return null;
+        case STRING:    return readString(in);
+        case INT:       return unzigzag(readVarInt(in));
+        case LONG:      return unzigzag(readVarLong(in));
+        case TRUE:      return true;
+        case FALSE:     return false;
+        case DOUBLE:    return in.readDouble();
+        case FLOAT:     return in.readFloat();
+        case SHORT:     return in.readShort();
+        case BYTE:      return in.readByte();
+        case CHAR:      return in.readChar();
+        case BYTES: {
+            byte[] b = new byte[readLength(in,1)];
+            in.readFully(b);
+            return b;
+        }
+        case LIST:
+        case SET: {
+            int n = readLength(in,1);
+            Collection<Object> c = tag==LIST ? new ArrayList<Object>(n) : new LinkedHashSet<Object>();
+            for (int i=0; i<n; i++)
+                c.add(readValue(in));
+            return c;
+        }
+        case MAP: {
+            int n = readLength(in,2);
+            Map<Object,Object> m = new LinkedHashMap<Object,Object>();
+            for (int i=0; i<n; i++)
+                m.put(readValue(in), readValue(in));
+            return m;
+        }
+        case SERIALIZED: {
+            byte[] b = new byte[readLength(in,1)];
+            in.readFully(b);
+            return new ObjectInputStreamEx(new ByteArrayInputStream(b), classLoader).readObject();
+        }
+        case DEADLINE:  return Deadline.after(unzigzag(readVarLong(in)), TimeUnit.NANOSECONDS);
+        case TOKEN:     return new AuthenticationToken(readVarLong(in), null);
+        default:
+            throw new StreamCorruptedException("Unexpected tag: "+tag);
+        }
+    }
+
+    private Set<Object> readContext(DataInputStream in) throws IOException, ClassNotFoundException {
+        Object v = readValue(in);
+        if (v==null)
+            return Collections.emptySet();
+        if (!(v instanceof Set))
+            throw new StreamCorruptedException("Expected the call context but got "+v.getClass().getName());
+        return (Set<Object>) v;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVarInt(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[readLength(in,1)];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * Reads the number of bytes or elements that follow, each of which takes at least the given number of bytes.
+     *
+     * Frames are always read from memory, so {@link DataInputStream#available()} is the exact number of bytes left.
+     */
+    private static int readLength(DataInputStream in, int minBytes) throws IOException {
+        int n = readVarInt(in);
+        int left = in.available();
+        if (n<0 || (long)n*minBytes>left)
+            throw new StreamCorruptedException("Length "+n+" exceeds the "+left+" bytes left in the frame");
+        return n;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        while ((v&~0x7F)!=0) {
+            out.writeByte((v&0x7F)|0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            int b = in.readByte();
+            v |= (b&0x7F)<<shift;
+            if ((b&0x80)==0)
+                return v;
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v&~0x7FL)!=0) {
+            out.writeByte((int)(v&0x7F)|0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = in.readByte();
+            v |= (long)(b&0x7F)<<shift;
+            if ((b&0x80)==0)
+                return v;
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private static int zigzag(int v) {
+        return (v<<1)^(v>>31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v>>>1)^-(v&1);
+    }
+
+    private static long zigzag(long v) {
+        return (v<<1)^(v>>63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v>>>1)^-(v&1);
+    }
+
+    /**
+     * Return value that the receiver couldn't encode, passed as is to the transport.
+     */
+    private static final class Unencoded implements Serializable {
+        private final Object value;
+
+        private Unencoded(Object value) {
+            this.value = value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final int NULL=0, STRING=1, INT=2, LONG=3, TRUE=4, FALSE=5, DOUBLE=6, FLOAT=7, SHORT=8, BYTE=9, CHAR=10,
+            BYTES=11, LIST=12, SET=13, MAP=14, SERIALIZED=15, DEADLINE=16, TOKEN=17;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Map<String,Class> PRIMITIVES = new HashMap<String,Class>();
+    private static final Map<Class,Class> WRAPPERS = new HashMap<Class,Class>();
+
+    static {
+        for (Class c : new Class[]{boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class, void.class})
+            PRIMITIVES.put(c.getName(),c);
+        for (Class c : new Class[]{Boolean.class, Byte.class, Character.class, Short.class, Integer.class, Long.class, Float.class, Double.class})
+            WRAPPERS.put(c,c);
+    }
+
+    /**
+     * Collection types that are decoded as {@link ArrayList}, {@link LinkedHashSet}, and {@link LinkedHashMap} respectively
+     * without anyone noticing the difference.
+     */
+    private static final Set<Class> LISTS = new HashSet<Class>(Arrays.<Class>asList(
+            ArrayList.class, Arrays.asList().getClass(), Collections.emptyList().getClass(), Collections.singletonList(null).getClass()));
+    private static final Set<Class> SETS = new HashSet<Class>(Arrays.<Class>asList(
+            HashSet.class, LinkedHashSet.class, Collections.emptySet().getClass(), Collections.singleton(null).getClass()));
+    private static final Set<Class> MAPS = new HashSet<Class>(Arrays.<Class>asList(
+            HashMap.class, LinkedHashMap.class, Collections.emptyMap().getClass(), Collections.singletonMap(null,null).getClass()));
+}
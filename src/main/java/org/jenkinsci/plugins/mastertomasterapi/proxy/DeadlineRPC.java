@@ -0,0 +1,264 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pair of {@link RPC} filter objects that carries the deadline of the calling thread to the receiver.
+ *
+ * <p>
+ * The caller sets the deadline with {@link #within(long, TimeUnit, java.util.concurrent.Callable)}.
+ * Calls made in that scope fail with {@link DeadlineExceededException} once the deadline passes,
+ * instead of waiting on a peer that doesn't respond. The receiver doesn't start calls whose deadline
+ * has already passed by the time they arrive. While the receiver is working on a call, the deadline also
+ * applies to the calls it makes to other masters.
+ *
+ * <p>
+ * Calls that run past the deadline are cancelled as remoting requests, which stops them on the receiver side.
+ * No thread is interrupted on the caller side, since interrupting a thread closes any
+ * {@link java.nio.channels.InterruptibleChannel} it happens to be using. To be able to stop waiting,
+ * the transport at the bottom of the chain makes a synchronous call with a deadline asynchronously,
+ * and waits for it with {@link #await(Future, Deadline, String)}.
+ *
+ * <p>
+ * The deadline is sent as the remaining time and not as the wall clock time, so it works between masters
+ * whose clocks disagree. The time spent on the wire is not accounted for, which gives the receiver a bit of
+ * leeway.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class DeadlineRPC {
+    private DeadlineRPC() {} // no instantiation please
+
+    /**
+     * Point in time by which a call needs to complete.
+     */
+    public static final class Deadline implements Serializable {
+        /**
+         * {@link System#nanoTime()} at which this deadline passes. Only meaningful in this JVM.
+         */
+        private transient long expiresAt;
+
+        private Deadline(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        public static Deadline after(long timeout, TimeUnit unit) {
+            return new Deadline(System.nanoTime()+unit.toNanos(timeout));
+        }
+
+        public long remaining(TimeUnit unit) {
+            return unit.convert(expiresAt-System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public boolean isExpired() {
+            return expiresAt-System.nanoTime()<=0;
+        }
+
+        private boolean isBefore(Deadline that) {
+            return expiresAt-that.expiresAt<0;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            // the same deadline can be serialized by many threads at once, so don't touch any field
+            ObjectOutputStream.PutField f = out.putFields();
+            f.put("remaining", expiresAt-System.nanoTime());
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField f = in.readFields();
+            expiresAt = System.nanoTime()+f.get("remaining", 0L);
+        }
+
+        /**
+         * Remaining time in nanoseconds when this object was serialized.
+         */
+        private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("remaining", long.class)
+        };
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Thrown when a call doesn't complete by its {@link Deadline}.
+     */
+    public static final class DeadlineExceededException extends RuntimeException {
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+    /**
+     * Deadline that applies to the calls made by the current thread, if any.
+     */
+    @CheckForNull
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs the given code with the deadline that's the given amount of time from now.
+     * If the current thread already has an earlier deadline, that one stays in effect.
+     */
+    public static <V> V within(long timeout, TimeUnit unit, java.util.concurrent.Callable<V> body) throws Exception {
+        Deadline d = Deadline.after(timeout, unit);
+        Deadline old = CURRENT.get();
+        if (old!=null && old.isBefore(d))
+            d = old;
+        CURRENT.set(d);
+        try {
+            return body.call();
+        } finally {
+            CURRENT.set(old);
+        }
+    }
+
+    /**
+     * Sends the deadline along with the calls. Waiting for them is up to the transport below,
+     * which can stop at the deadline with {@link #await(Future, Deadline, String)}.
+     * The receiver still doesn't start the calls that arrive after the deadline.
+     */
+    public static RPC sender(final RPC receiver) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                Deadline d = CURRENT.get();
+                if (d==null)
+                    return receiver.call(methodName, arguments, context);
+                if (d.isExpired())
+                    throw new DeadlineExceededException("Deadline passed before calling "+methodName);
+                return receiver.call(methodName, arguments, with(context, d));
+            }
+        };
+    }
+
+    /**
+     * For a transport that makes a synchronous call asynchronously, waits for its result until the given deadline.
+     * Once the deadline passes, the call is cancelled, which stops it on the receiver side, and this throws
+     * {@link DeadlineExceededException}. The calling thread is never interrupted.
+     *
+     * @param what
+     *      Describes the call in the error message.
+     * @throws Throwable
+     *      whatever the call has thrown.
+     */
+    public static <V> V await(Future<V> f, Deadline d, String what) throws Throwable {
+        try {
+            return f.get(Math.max(0,d.remaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            f.cancel(true);     // this cancels the request on the receiver side, not this thread
+            throw new DeadlineExceededException(what+" didn't complete by the deadline");
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static AsyncRPC sender(final AsyncRPC receiver) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                Deadline d = CURRENT.get();
+                if (d==null)
+                    return receiver.callAsync(methodName, arguments, context);
+                if (d.isExpired())
+                    throw new DeadlineExceededException("Deadline passed before calling "+methodName);
+                return new DeadlineFuture(receiver.callAsync(methodName, arguments, with(context, d)), d, methodName);
+            }
+        };
+    }
+
+    public static RPC receiver(final RPC receiver) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                Deadline d = find(context);
+                if (d==null)
+                    return receiver.call(methodName, arguments, context);
+                if (d.isExpired())
+                    throw new DeadlineExceededException("Deadline had passed before "+methodName+" started");
+
+                Deadline old = CURRENT.get();
+                CURRENT.set(d);
+                try {
+                    return receiver.call(methodName, arguments, context);
+                } finally {
+                    CURRENT.set(old);
+                }
+            }
+        };
+    }
+
+    @CheckForNull
+    private static Deadline find(Set<Object> context) {
+        for (Object o : context) {
+            if (o instanceof Deadline)
+                return (Deadline) o;
+        }
+        return null;
+    }
+
+    private static Set<Object> with(Set<Object> context, Deadline d) {
+        context = new HashSet<Object>(context);
+        context.add(d);
+        return context;
+    }
+
+    /**
+     * Gives up waiting for the result of an asynchronous call once its deadline passes.
+     */
+    private static final class DeadlineFuture implements Future<Object> {
+        private final Future<Object> base;
+        private final Deadline deadline;
+        private final String methodName;
+
+        DeadlineFuture(Future<Object> base, Deadline deadline, String methodName) {
+            this.base = base;
+            this.deadline = deadline;
+            this.methodName = methodName;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            try {
+                return base.get(Math.max(0,deadline.remaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                base.cancel(true);
+                throw new ExecutionException(new DeadlineExceededException(methodName+" didn't complete by the deadline"));
+            }
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (unit.toNanos(timeout)<deadline.remaining(TimeUnit.NANOSECONDS))
+                return base.get(timeout, unit);
+            return get();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return base.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return base.isCancelled();
+        }
+
+        public boolean isDone() {
+            return base.isDone() || deadline.isExpired();
+        }
+    }
+}
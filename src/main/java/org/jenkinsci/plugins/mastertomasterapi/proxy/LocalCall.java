@@ -1,12 +1,20 @@
 package org.jenkinsci.plugins.mastertomasterapi.proxy;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import org.kohsuke.stapler.ReflectionUtils;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Calls methods on a local object without any remoting.
@@ -17,22 +25,83 @@ import java.util.Set;
  * of the arguments as JVM default values. Failing that, it'll still try to call a method
  * that has a shorter arguments by dropping the rest of the arguments.
  *
+ * <p>
+ * Methods are indexed by their names upfront, and the outcome of the method selection is
+ * remembered for each distinct {@linkplain CallShape shape} of the call, so the scoring
+ * only happens the first time a caller uses a particular combination of argument types.
+ * All of this is shared among {@link LocalCall}s whose receivers are of the same class,
+ * so wrapping another instance of a known class doesn't reflect over it again.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class LocalCall implements RPC {
     private final Object receiver;
-    private final List<MethodDef> methods = new ArrayList<MethodDef>();
+
+    private final Dispatcher dispatcher;
 
     public LocalCall(Object receiver) {
         this.receiver = receiver;
-        for (Method m : receiver.getClass().getMethods())
-            methods.add(new MethodDef(m));
+        this.dispatcher = DISPATCHERS.getUnchecked(receiver.getClass());
+    }
+
+    /**
+     * Method selection for one receiver class.
+     */
+    private static final class Dispatcher {
+        /**
+         * Public methods on the receiver class, keyed by their names.
+         */
+        private final Map<String,MethodDef[]> methods = new HashMap<String,MethodDef[]>();
+
+        /**
+         * Memoized outcome of {@link #findBestMethod(String, List)} for each call shape we've seen.
+         */
+        private final ConcurrentMap<CallShape,MethodDef> dispatch = new ConcurrentHashMap<CallShape,MethodDef>();
+
+        private Dispatcher(Class<?> type) {
+            Map<String,List<MethodDef>> byName = new HashMap<String,List<MethodDef>>();
+            for (Method m : type.getMethods()) {
+                List<MethodDef> l = byName.get(m.getName());
+                if (l==null)
+                    byName.put(m.getName(), l=new ArrayList<MethodDef>());
+                l.add(new MethodDef(m));
+            }
+            for (Map.Entry<String,List<MethodDef>> e : byName.entrySet())
+                methods.put(e.getKey(), e.getValue().toArray(new MethodDef[e.getValue().size()]));
+        }
+
+        /**
+         * Picks the method with the best score, or reuses the earlier decision made for the same call shape.
+         */
+        private MethodDef findBestMethod(String methodName, List<Argument> argumentsAndNames) {
+            MethodDef[] candidates = methods.get(methodName);
+            if (candidates==null)
+                return null;
+
+            CallShape shape = new CallShape(methodName, argumentsAndNames);
+            MethodDef method = dispatch.get(shape);
+            if (method!=null)
+                return method;
+
+            int score=0;
+            for (MethodDef m : candidates) {
+                int s = m.score(argumentsAndNames);
+                if (s>score) {
+                    score = s;
+                    method = m;
+                }
+            }
+
+            if (method!=null)
+                dispatch.putIfAbsent(shape,method);
+            return method;
+        }
     }
 
     /**
-     * Public method definition on the receiver.
+     * Public method definition on the receiver class.
      */
-    private class MethodDef {
+    private static final class MethodDef {
         private final Method m;
         private Class<?>[] paramTypes;
 
@@ -40,15 +109,21 @@ public class LocalCall implements RPC {
             this.m = m;
             this.paramTypes = m.getParameterTypes();
             // TODO: capture argument names and use them
+
+            // we can't use MethodHandle as long as we need to run on Java6,
+            // but we can at least skip the access check on every invocation
+            try {
+                m.setAccessible(true);
+            } catch (RuntimeException e) {
+                // SecurityException, or InaccessibleObjectException on Java 9 and later for classes
+                // in packages that aren't open to us. Fall back to the checked invocation
+            }
         }
 
         /**
          * Picks the best matching method to dispatch the call to. Higher the score, the better.
          */
-        private int score(String methodName, List<Argument> args) {
-            if (!m.getName().equals(methodName))
-                return 0;
-
+        private int score(List<Argument> args) {
             int expected = paramTypes.length;
             int actual = args.size();
 
@@ -73,7 +148,7 @@ public class LocalCall implements RPC {
         /**
          * Invokes the method.
          */
-        public Object invoke(List<Argument> args) throws Throwable {
+        public Object invoke(Object receiver, List<Argument> args) throws Throwable {
             Object[] a = new Object[paramTypes.length]; // actual arguments to call
 
             int expected = paramTypes.length;
@@ -100,28 +175,58 @@ public class LocalCall implements RPC {
     }
 
     public Object call(String methodName, List<Argument> argumentsAndNames, Set<Object> context) throws Throwable {
-        MethodDef method = findBestMethod(methodName, argumentsAndNames);
+        MethodDef method = dispatcher.findBestMethod(methodName, argumentsAndNames);
 
         if (method!=null)
-            return method.invoke(argumentsAndNames);
+            return method.invoke(receiver, argumentsAndNames);
         else
             throw new NoSuchMethodException(methodName);
     }
 
     /**
-     * Picks the method with the best score
+     * Everything about a call that affects the outcome of the method selection,
+     * namely the method name and the type of each argument as seen by {@link Argument#isAssignableTo(Class)}.
      */
-    private MethodDef findBestMethod(String methodName, List<Argument> argumentsAndNames) {
-        int score=0;
-        MethodDef method=null;
-        for (MethodDef m : methods) {
-            int s = m.score(methodName, argumentsAndNames);
-            if (s>score) {
-                score = s;
-                method = m;
+    private static final class CallShape {
+        private final String methodName;
+        /**
+         * null in this array represents an argument whose type and value are both null.
+         */
+        private final Class[] types;
+        private final int hashCode;
+
+        CallShape(String methodName, List<Argument> args) {
+            this.methodName = methodName;
+            this.types = new Class[args.size()];
+            for (int i=0; i<types.length; i++) {
+                Argument a = args.get(i);
+                types[i] = a.type!=null ? a.type : a.value!=null ? a.value.getClass() : null;
             }
+            this.hashCode = methodName.hashCode()*31 + Arrays.hashCode(types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallShape))  return false;
+            CallShape that = (CallShape) o;
+            return hashCode==that.hashCode && methodName.equals(that.methodName) && Arrays.equals(types, that.types);
         }
-        return method;
     }
 
+    /**
+     * {@link Dispatcher}s by the receiver class. A {@link Dispatcher} refers to its class through the methods,
+     * so weak keys alone would never let go of them. The values are weak as well, so a dispatcher stays only as long
+     * as {@link LocalCall}s use it, and classes from plugins can be unloaded after that.
+     */
+    private static final LoadingCache<Class<?>,Dispatcher> DISPATCHERS = CacheBuilder.newBuilder().weakKeys().weakValues().build(new CacheLoader<Class<?>,Dispatcher>() {
+        @Override
+        public Dispatcher load(Class<?> type) {
+            return new Dispatcher(type);
+        }
+    });
 }
@@ -0,0 +1,347 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces calls to services of one master into a single request, so that a series of small calls
+ * pays for one round trip instead of one per call.
+ *
+ * <p>
+ * Calls are collected either inside an explicit {@linkplain #batch(java.util.concurrent.Callable) batch scope}
+ * of the calling thread, or from all the threads within a small time window if one is configured.
+ * Calls in a batch are performed on the receiver side one by one in the order they were made,
+ * and each caller receives its own return value or exception.
+ *
+ * <p>
+ * A synchronous call made inside a batch scope can't wait for the end of the scope, so it sends
+ * the batch collected so far together with itself.
+ *
+ * <p>
+ * The subtype provides the transport by implementing {@link #send(List)}, and the receiver side
+ * performs the calls with {@link #receive(Call, RPC)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class RPCBatcher {
+    /**
+     * Time window in milliseconds to collect calls from all threads. 0 to only batch calls in an explicit scope.
+     */
+    private final long window;
+
+    /**
+     * Calls collected by the {@link #batch(java.util.concurrent.Callable)} scope of the current thread.
+     */
+    private final ThreadLocal<List<Pending>> scope = new ThreadLocal<List<Pending>>();
+
+    /**
+     * Calls collected in the current time window. Guarded by {@code this}.
+     */
+    private List<Pending> windowed;
+
+    protected RPCBatcher(long window, TimeUnit unit) {
+        this.window = unit.toMillis(window);
+    }
+
+    /**
+     * Sends the calls to the receiver as one request.
+     *
+     * @return
+     *      Future that receives the outcomes of the calls, in the same order as the calls.
+     * @throws IOException
+     *      If the batch couldn't be sent. This fails all the calls in the batch.
+     */
+    protected abstract Future<List<Outcome>> send(List<Call> calls) throws IOException;
+
+    /**
+     * Runs the given code while collecting calls to be sent in batches, then sends what's left at the end.
+     */
+    public <V> V batch(java.util.concurrent.Callable<V> body) throws Exception {
+        if (scope.get()!=null)
+            return body.call();     // nested scope
+
+        scope.set(new ArrayList<Pending>());
+        try {
+            return body.call();
+        } finally {
+            List<Pending> pending = scope.get();
+            scope.remove();
+            flush(pending);
+        }
+    }
+
+    /**
+     * Wraps a synchronous call chain so that calls to the given service participate in batching.
+     *
+     * @param direct
+     *      Used as is when there's no batch to add the call to.
+     */
+    public RPC wrap(final Class<?> service, final RPC direct) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                if (scope.get()==null && window==0)
+                    return direct.call(methodName, arguments, context);
+
+                Pending p = enqueue(new Call(service, methodName, arguments, context));
+                List<Pending> s = scope.get();
+                if (s!=null) {
+                    // we need the result now, so send everything collected so far
+                    scope.set(new ArrayList<Pending>());
+                    flush(s);
+                }
+
+                try {
+                    return p.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates an asynchronous call chain to the given service.
+     * A call made outside batching is sent right away as a batch of its own.
+     */
+    public AsyncRPC wrap(final Class<?> service) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                Call c = new Call(service, methodName, arguments, context);
+                if (scope.get()==null && window==0) {
+                    Pending p = new Pending(c, null);
+                    List<Pending> l = new ArrayList<Pending>(1);
+                    l.add(p);
+                    flush(l);
+                    return p;
+                }
+                return enqueue(c);
+            }
+        };
+    }
+
+    private Pending enqueue(Call c) {
+        List<Pending> s = scope.get();
+        if (s!=null) {
+            Pending p = new Pending(c, Thread.currentThread());
+            s.add(p);
+            return p;
+        }
+
+        Pending p = new Pending(c, null);
+        List<Pending> full = null;
+        synchronized (this) {
+            if (windowed==null) {
+                windowed = new ArrayList<Pending>();
+                TIMER.schedule(new Runnable() {
+                    public void run() {
+                        List<Pending> l;
+                        synchronized (RPCBatcher.this) {
+                            l = windowed;
+                            windowed = null;
+                        }
+                        if (l!=null)
+                            flush(l);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+            windowed.add(p);
+            if (windowed.size()>=MAX_BATCH_SIZE) {
+                full = windowed;
+                windowed = null;
+            }
+        }
+        if (full!=null)
+            flush(full);
+        return p;
+    }
+
+    private void flush(List<Pending> pending) {
+        if (pending.isEmpty())
+            return;
+
+        List<Call> calls = new ArrayList<Call>(pending.size());
+        for (Pending p : pending)
+            calls.add(p.call);
+
+        try {
+            Future<List<Outcome>> f = send(calls);
+            for (int i=0; i<pending.size(); i++)
+                pending.get(i).sent(f, i, pending.size());
+        } catch (IOException e) {
+            for (Pending p : pending)
+                p.failed(e);
+        } catch (RuntimeException e) {
+            for (Pending p : pending)
+                p.failed(e);
+        }
+    }
+
+    /**
+     * Performs a call on the receiver side and captures its outcome.
+     */
+    public static Outcome receive(Call call, RPC receiver) {
+        try {
+            return new Outcome(receiver.call(call.methodName, call.arguments, call.context), null);
+        } catch (Throwable t) {
+            return new Outcome(null, t);
+        }
+    }
+
+    /**
+     * A call in a batch.
+     */
+    public static final class Call implements Serializable {
+        /**
+         * Service interface of the receiver, as in {@link org.jenkinsci.plugins.mastertomasterapi.Master#getService(Class)}.
+         */
+        public final Class service;
+        public final String methodName;
+        public final List<Argument> arguments;
+        public final Set<Object> context;
+
+        public Call(Class service, String methodName, List<Argument> arguments, Set<Object> context) {
+            this.service = service;
+            this.methodName = methodName;
+            this.arguments = arguments;
+            this.context = context;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Return value or exception of a {@link Call}.
+     */
+    public static final class Outcome implements Serializable {
+        private final Object value;
+        private final Throwable error;
+
+        public Outcome(Object value, Throwable error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A call waiting for its outcome, whose {@link Future} becomes available once the batch is sent.
+     */
+    private final class Pending implements Future<Object> {
+        private final Call call;
+        /**
+         * If this call is collected in a batch scope, the thread that owns the scope.
+         */
+        private final Thread owner;
+
+        private Future<List<Outcome>> batch;
+        private int index, size;
+        private Throwable failure;
+
+        private Pending(Call call, Thread owner) {
+            this.call = call;
+            this.owner = owner;
+        }
+
+        synchronized void sent(Future<List<Outcome>> batch, int index, int size) {
+            this.batch = batch;
+            this.index = index;
+            this.size = size;
+            notifyAll();
+        }
+
+        synchronized void failed(Throwable t) {
+            this.failure = t;
+            notifyAll();
+        }
+
+        private synchronized boolean isSent() {
+            return batch!=null || failure!=null;
+        }
+
+        /**
+         * Waiting for the end of the scope from the thread that owns it would never end,
+         * so send the calls collected so far.
+         */
+        private void flushScopeIfOwner() {
+            if (owner==Thread.currentThread() && !isSent()) {
+                List<Pending> s = scope.get();
+                if (s!=null) {
+                    scope.set(new ArrayList<Pending>());
+                    flush(s);
+                }
+            }
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            flushScopeIfOwner();
+            Future<List<Outcome>> f;
+            synchronized (this) {
+                while (!isSent())
+                    wait();
+                f = batch;
+            }
+            if (failure!=null)
+                throw new ExecutionException(failure);
+            return unwrap(f.get());
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            flushScopeIfOwner();
+            long end = System.nanoTime()+unit.toNanos(timeout);
+            Future<List<Outcome>> f;
+            synchronized (this) {
+                while (!isSent()) {
+                    long remaining = end-System.nanoTime();
+                    if (remaining<=0)
+                        throw new TimeoutException();
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                f = batch;
+            }
+            if (failure!=null)
+                throw new ExecutionException(failure);
+            return unwrap(f.get(Math.max(0,end-System.nanoTime()), TimeUnit.NANOSECONDS));
+        }
+
+        private Object unwrap(List<Outcome> outcomes) throws ExecutionException {
+            Outcome o = outcomes.get(index);
+            if (o.error!=null)
+                throw new ExecutionException(o.error);
+            return o.value;
+        }
+
+        /**
+         * Only a batch of one call can be cancelled, as other calls in the same batch are still going.
+         */
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            return batch!=null && size==1 && batch.cancel(mayInterruptIfRunning);
+        }
+
+        public synchronized boolean isCancelled() {
+            return batch!=null && size==1 && batch.isCancelled();
+        }
+
+        public synchronized boolean isDone() {
+            return failure!=null || (batch!=null && batch.isDone());
+        }
+    }
+
+    /**
+     * Beyond this size, a batch in a time window is sent without waiting for the window to close.
+     */
+    public static int MAX_BATCH_SIZE = Integer.getInteger(RPCBatcher.class.getName()+".maxBatchSize", 256);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+}
@@ -0,0 +1,533 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * A pair of {@link RPC} filter objects that counts calls, errors, bytes, and latency,
+ * for each peer, service interface, method, and direction.
+ *
+ * <p>
+ * Statistics are kept in lock-free counters and a fixed size histogram, so that this can stay on in production.
+ * They are available from {@link #all()}, and are also exposed as MBeans under {@value #DOMAIN}.
+ *
+ * <p>
+ * Sizes of requests and responses are only known when the transport reports them via
+ * {@link #transferred(long, long)} and {@link #receiving(long)}, which {@link CompactCodec} does.
+ *
+ * <p>
+ * Calls to names that aren't methods of the service are counted together under {@value #UNKNOWN_METHOD},
+ * so that a peer can't make us create statistics without bounds. The connection calls {@link #forget(String)}
+ * when the peer goes away, which drops its statistics and MBeans.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class RPCMetrics {
+    private RPCMetrics() {} // no instantiation please
+
+    public enum Direction {
+        /**
+         * Calls made by this master.
+         */
+        OUTBOUND,
+        /**
+         * Calls served by this master.
+         */
+        INBOUND
+    }
+
+    /**
+     * Statistics of one method, as seen from MBean clients.
+     */
+    public interface MethodStatsMBean {
+        long getCalls();
+        long getErrors();
+        long getRequestBytes();
+        long getResponseBytes();
+        long getLatencyP50Micros();
+        long getLatencyP99Micros();
+        long getLatencyMaxMicros();
+    }
+
+    public static final class MethodStats implements MethodStatsMBean {
+        private final Direction direction;
+        private final String peer, service, method;
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private MethodStats(Direction direction, String peer, String service, String method) {
+            this.direction = direction;
+            this.peer = peer;
+            this.service = service;
+            this.method = method;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * Public key fingerprint of the other master.
+         */
+        public String getPeer() {
+            return peer;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        public long getLatencyP50Micros() {
+            return latency.percentile(0.50);
+        }
+
+        public long getLatencyP99Micros() {
+            return latency.percentile(0.99);
+        }
+
+        public long getLatencyMaxMicros() {
+            return latency.max.get();
+        }
+
+        private void record(long startNanos, boolean failed, Sample s) {
+            calls.incrementAndGet();
+            if (failed)
+                errors.incrementAndGet();
+            latency.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-startNanos));
+            if (s.requestBytes>0)
+                requestBytes.addAndGet(s.requestBytes);
+            if (s.responseBytes>0)
+                responseBytes.addAndGet(s.responseBytes);
+        }
+    }
+
+    /**
+     * Histogram with 8 buckets for each power of two, so percentiles are accurate to within 12.5%.
+     * Also used by the load harness, which is why it's public.
+     */
+    public static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketOf(Long.MAX_VALUE)+1);
+        private final AtomicLong max = new AtomicLong();
+
+        public void add(long v) {
+            buckets.incrementAndGet(bucketOf(v));
+            long m;
+            while ((m=max.get())<v && !max.compareAndSet(m,v))
+                ;
+        }
+
+        public void reset() {
+            for (int i=0; i<buckets.length(); i++)
+                buckets.set(i,0);
+            max.set(0);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i=0; i<buckets.length(); i++)
+                n += buckets.get(i);
+            return n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket that the given fraction of the samples fall in.
+         */
+        public long percentile(double p) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i=0; i<counts.length; i++)
+                total += counts[i] = buckets.get(i);
+            if (total==0)
+                return 0;
+
+            long threshold = (long)Math.ceil(total*p);
+            long sum = 0;
+            for (int i=0; i<counts.length; i++) {
+                sum += counts[i];
+                if (sum>=threshold)
+                    return Math.min(upperBoundOf(i), max.get());
+            }
+            return max.get();
+        }
+
+        static int bucketOf(long v) {
+            if (v<8)
+                return (int)Math.max(v,0);
+            int exp = 63-Long.numberOfLeadingZeros(v);
+            return ((exp-2)<<3) | (int)((v>>>(exp-3)) & 7);
+        }
+
+        static long upperBoundOf(int b) {
+            if (b<8)
+                return b;
+            int shift = (b>>3)-1;   // exp-3
+            return (((long)(8|(b&7)))<<shift) + (1L<<shift) - 1;
+        }
+    }
+
+    /**
+     * Statistics of the methods of one service with one peer, which a filter holds on to.
+     */
+    private static final class ServiceStats {
+        private final Direction direction;
+        private final String peer, service;
+        /**
+         * Names of the methods of the service.
+         */
+        private final Set<String> known = new HashSet<String>();
+        private final ConcurrentMap<String,MethodStats> methods = new ConcurrentHashMap<String,MethodStats>();
+        /**
+         * Set once {@link #forget(String)} drops this, after which no MBean is registered. Guarded by this.
+         */
+        private boolean discarded;
+
+        ServiceStats(Direction direction, String peer, Class<?> service) {
+            this.direction = direction;
+            this.peer = peer;
+            this.service = service.getName();
+            for (Method m : service.getMethods())
+                known.add(m.getName());
+        }
+
+        MethodStats get(String method) {
+            if (!known.contains(method))
+                method = UNKNOWN_METHOD;
+            MethodStats s = methods.get(method);
+            if (s==null) {
+                MethodStats n = new MethodStats(direction, peer, service, method);
+                s = methods.putIfAbsent(method, n);
+                if (s==null) {
+                    s = n;
+                    synchronized (this) {
+                        if (!discarded)
+                            register(n);
+                    }
+                }
+            }
+            return s;
+        }
+
+        synchronized void discard() {
+            discarded = true;
+            for (MethodStats m : methods.values())
+                unregister(m);
+        }
+    }
+
+    /**
+     * Bytes attributed to the call in progress on the current thread.
+     */
+    public static final class Sample {
+        private final Sample previous;
+        private long requestBytes, responseBytes;
+        /**
+         * Set once a receiver filter picks up this sample.
+         */
+        private MethodStats stats;
+
+        private Sample(Sample previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Called by the transport on the receiver side once the response is encoded.
+         */
+        public void close(long responseBytes) {
+            CURRENT.set(previous);
+            if (stats!=null && responseBytes>0)
+                stats.responseBytes.addAndGet(responseBytes);
+        }
+    }
+
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<Sample>();
+
+    /**
+     * Called by the transport on the sender side to report the size of the call in progress.
+     */
+    public static void transferred(long requestBytes, long responseBytes) {
+        Sample s = CURRENT.get();
+        if (s!=null) {
+            s.requestBytes += requestBytes;
+            s.responseBytes += responseBytes;
+        }
+    }
+
+    /**
+     * Called by the transport on the receiver side before it performs a call of the given size.
+     * The returned sample must be {@linkplain Sample#close(long) closed} afterward.
+     */
+    public static Sample receiving(long requestBytes) {
+        Sample s = new Sample(CURRENT.get());
+        s.requestBytes = requestBytes;
+        CURRENT.set(s);
+        return s;
+    }
+
+    /**
+     * @param peer
+     *      Identifies the master that receives the calls.
+     */
+    public static RPC sender(final RPC receiver, String peer, Class<?> service) {
+        if (DISABLED)   return receiver;
+        final ServiceStats stats = statsOf(Direction.OUTBOUND, peer, service);
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                long start = System.nanoTime();
+                Sample s = new Sample(CURRENT.get());
+                CURRENT.set(s);
+                boolean failed = true;
+                try {
+                    Object v = receiver.call(methodName, arguments, context);
+                    failed = false;
+                    return v;
+                } finally {
+                    CURRENT.set(s.previous);
+                    stats.get(methodName).record(start, failed, s);
+                }
+            }
+        };
+    }
+
+    public static AsyncRPC sender(final AsyncRPC receiver, String peer, Class<?> service) {
+        if (DISABLED)   return receiver;
+        final ServiceStats stats = statsOf(Direction.OUTBOUND, peer, service);
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                MethodStats ms = stats.get(methodName);
+                long start = System.nanoTime();
+                try {
+                    return new RecordingFuture(receiver.callAsync(methodName, arguments, context), ms, start);
+                } catch (IOException e) {
+                    ms.record(start, true, new Sample(null));
+                    throw e;
+                } catch (RuntimeException e) {
+                    ms.record(start, true, new Sample(null));
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param peer
+     *      Identifies the master that makes the calls.
+     */
+    public static RPC receiver(final RPC receiver, String peer, Class<?> service) {
+        if (DISABLED)   return receiver;
+        final ServiceStats stats = statsOf(Direction.INBOUND, peer, service);
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                MethodStats ms = stats.get(methodName);
+                long start = System.nanoTime();
+                Sample s = CURRENT.get();
+                boolean own = s==null || s.stats!=null;  // else the transport has opened it for us
+                if (own)
+                    CURRENT.set(s = new Sample(s));
+                s.stats = ms;
+
+                boolean failed = true;
+                try {
+                    Object v = receiver.call(methodName, arguments, context);
+                    failed = false;
+                    return v;
+                } finally {
+                    if (own)
+                        CURRENT.set(s.previous);
+                    ms.record(start, failed, s);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records an asynchronous call when its outcome is first observed.
+     */
+    private static final class RecordingFuture implements Future<Object> {
+        private final Future<Object> base;
+        private final MethodStats stats;
+        private final long start;
+        private final AtomicLong recorded = new AtomicLong();
+
+        RecordingFuture(Future<Object> base, MethodStats stats, long start) {
+            this.base = base;
+            this.stats = stats;
+            this.start = start;
+        }
+
+        private void record(boolean failed) {
+            if (recorded.compareAndSet(0,1))
+                stats.record(start, failed, new Sample(null));
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            try {
+                Object v = base.get();
+                record(false);
+                return v;
+            } catch (ExecutionException e) {
+                record(true);
+                throw e;
+            }
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                Object v = base.get(timeout, unit);
+                record(false);
+                return v;
+            } catch (ExecutionException e) {
+                record(true);
+                throw e;
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return base.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return base.isCancelled();
+        }
+
+        public boolean isDone() {
+            return base.isDone();
+        }
+    }
+
+    private static final ConcurrentMap<List<Object>,ServiceStats> SERVICES = new ConcurrentHashMap<List<Object>,ServiceStats>();
+
+    private static ServiceStats statsOf(Direction direction, String peer, Class<?> service) {
+        List<Object> key = Arrays.<Object>asList(direction, peer, service.getName());
+        ServiceStats s = SERVICES.get(key);
+        if (s==null) {
+            ServiceStats n = new ServiceStats(direction, peer, service);
+            s = SERVICES.putIfAbsent(key, n);
+            if (s==null)    s = n;
+        }
+        return s;
+    }
+
+    /**
+     * Statistics of all the methods called so far, sorted by the peer, the service, the method, and the direction.
+     */
+    public static List<MethodStats> all() {
+        List<MethodStats> r = new ArrayList<MethodStats>();
+        for (ServiceStats s : SERVICES.values())
+            r.addAll(s.methods.values());
+        Collections.sort(r, new Comparator<MethodStats>() {
+            public int compare(MethodStats a, MethodStats b) {
+                int c = a.peer.compareTo(b.peer);
+                if (c==0)   c = a.service.compareTo(b.service);
+                if (c==0)   c = a.method.compareTo(b.method);
+                if (c==0)   c = a.direction.compareTo(b.direction);
+                return c;
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Drops the statistics of the given peer, and unregisters their MBeans.
+     *
+     * Filters created for the peer before this keep working, but what they record is no longer visible,
+     * so call this once the connection to the peer is closed.
+     */
+    public static void forget(String peer) {
+        for (Iterator<ServiceStats> itr = SERVICES.values().iterator(); itr.hasNext();) {
+            ServiceStats s = itr.next();
+            if (s.peer.equals(peer)) {
+                itr.remove();
+                s.discard();
+            }
+        }
+    }
+
+    private static ObjectName nameOf(MethodStats s) throws JMException {
+        return new ObjectName(DOMAIN+":type=RPC"
+                +",direction="+s.direction.name().toLowerCase()
+                +",peer="+ObjectName.quote(s.peer)
+                +",service="+ObjectName.quote(s.service)
+                +",method="+ObjectName.quote(s.method));
+    }
+
+    private static void register(MethodStats s) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(s, MethodStatsMBean.class), nameOf(s));
+        } catch (JMException e) {
+            LOGGER.log(FINE, "Failed to register MBean for "+s.service+"."+s.method, e);
+        }
+    }
+
+    private static void unregister(MethodStats s) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(nameOf(s));
+        } catch (JMException e) {
+            LOGGER.log(FINE, "Failed to unregister MBean for "+s.service+"."+s.method, e);
+        }
+    }
+
+    public static final String DOMAIN = "org.jenkinsci.plugins.mastertomasterapi";
+
+    /**
+     * Method name that calls to unknown methods are counted under.
+     */
+    public static final String UNKNOWN_METHOD = "(unknown)";
+
+    /**
+     * Turns off the collection of metrics for connections made after this is set.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(RPCMetrics.class.getName()+".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(RPCMetrics.class.getName());
+}
@@ -0,0 +1,221 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.remoting.ObjectInputStreamEx;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.AuthenticationForwardingRPC.Identity;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Size-bounded cache of the return values of {@link Cacheable} methods, shared by {@link RPC} chains
+ * to many receivers.
+ *
+ * <p>
+ * Results are cached per caller, as identified by everything the receiver sees of its authentication.
+ * Each caller gets its own copy of a cached result, so one that modifies it doesn't affect the others.
+ * Strings, primitive wrappers, and enums are shared as they are immutable, and other results are kept
+ * in the serialized form. Results that can't be serialized aren't cached.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ResultCache {
+    private final Cache<Key,Entry> entries;
+    /**
+     * Incremented upon every invalidation, so that calls that were in flight at that point don't
+     * put back the results that were just invalidated.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    public ResultCache(int maxSize) {
+        entries = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * Wraps the caller side of the {@link RPC} chain so that {@link Cacheable} methods are served from this cache.
+     *
+     * @param owner
+     *      Identifies the receiver among the ones that share this cache, such as the identity of the master it's on.
+     * @param service
+     *      Interface that the calls are made through, which carries the {@link Cacheable} annotations.
+     */
+    public RPC wrap(final RPC receiver, final String owner, final Class<?> service) {
+        final Map<String,Map<List<Class<?>>,Long>> ttls = new HashMap<String,Map<List<Class<?>>,Long>>();
+        for (Method m : service.getMethods()) {
+            Cacheable c = m.getAnnotation(Cacheable.class);
+            if (c==null)    continue;
+            Map<List<Class<?>>,Long> overloads = ttls.get(m.getName());
+            if (overloads==null)
+                ttls.put(m.getName(), overloads = new HashMap<List<Class<?>>,Long>());
+            overloads.put(Arrays.<Class<?>>asList(m.getParameterTypes()), c.unit().toNanos(c.value()));
+        }
+        if (ttls.isEmpty())
+            return receiver;    // nothing to cache
+
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                Long ttl = ttlOf(methodName, arguments);
+                if (ttl==null)
+                    return receiver.call(methodName, arguments, context);
+
+                Key k = new Key(owner, service, methodName, arguments, new Identity(Jenkins.getAuthentication()));
+                Entry e = entries.getIfPresent(k);
+                if (e!=null && e.expires-System.nanoTime()>0)
+                    return e.get(service.getClassLoader());
+
+                long g = generation.get();
+                Object v = receiver.call(methodName, arguments, context);
+                if (v instanceof Iterator)  // iterators can be only consumed once
+                    return v;
+                e = Entry.of(v, System.nanoTime()+ttl);
+                if (e!=null && generation.get()==g) {
+                    entries.put(k, e);
+                    if (generation.get()!=g)    // invalidated while we were putting it
+                        entries.asMap().remove(k, e);
+                }
+                return v;
+            }
+
+            private Long ttlOf(String methodName, List<Argument> arguments) {
+                Map<List<Class<?>>,Long> overloads = ttls.get(methodName);
+                if (overloads==null)    return null;
+                Class<?>[] types = new Class<?>[arguments.size()];
+                for (int i=0; i<types.length; i++)
+                    types[i] = arguments.get(i).type;
+                return overloads.get(Arrays.asList(types));
+            }
+        };
+    }
+
+    /**
+     * Drops cached results.
+     *
+     * @param service
+     *      If non-null, only drop results of this service.
+     * @param methodName
+     *      If non-null, only drop results of methods of this name.
+     */
+    public void invalidate(String owner, @CheckForNull Class<?> service, @CheckForNull String methodName) {
+        generation.incrementAndGet();
+        for (Iterator<Key> itr = entries.asMap().keySet().iterator(); itr.hasNext();) {
+            Key k = itr.next();
+            if (k.owner.equals(owner)
+             && (service==null || k.service==service)
+             && (methodName==null || k.methodName.equals(methodName)))
+                itr.remove();
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.invalidateAll();
+    }
+
+    private static final class Key {
+        private final String owner;
+        private final Class<?> service;
+        private final String methodName;
+        private final Object[] args;
+        private final Identity caller;
+        private final int hashCode;
+
+        private Key(String owner, Class<?> service, String methodName, List<Argument> arguments, Identity caller) {
+            this.owner = owner;
+            this.service = service;
+            this.methodName = methodName;
+            this.args = new Object[arguments.size()];
+            for (int i=0; i<args.length; i++)
+                args[i] = arguments.get(i).value;
+            this.caller = caller;
+            this.hashCode = Arrays.deepHashCode(new Object[]{owner, service, methodName, args, caller});
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))    return false;
+            Key that = (Key) o;
+            return hashCode==that.hashCode && owner.equals(that.owner) && service==that.service
+                && methodName.equals(that.methodName) && caller.equals(that.caller) && Arrays.deepEquals(args, that.args);
+        }
+    }
+
+    private static final class Entry {
+        /**
+         * The result itself if it's immutable, or else null.
+         */
+        private final Object value;
+        /**
+         * The serialized result if it's not immutable, or else null.
+         */
+        private final byte[] serialized;
+        /**
+         * {@link System#nanoTime()} at which this entry expires.
+         */
+        private final long expires;
+
+        private Entry(Object value, byte[] serialized, long expires) {
+            this.value = value;
+            this.serialized = serialized;
+            this.expires = expires;
+        }
+
+        /**
+         * Returns a copy of the result that the caller can do whatever it wants with.
+         */
+        Object get(ClassLoader cl) throws IOException, ClassNotFoundException {
+            if (serialized==null)
+                return value;
+            return new ObjectInputStreamEx(new ByteArrayInputStream(serialized), cl).readObject();
+        }
+
+        /**
+         * @return null if the result can't be cached.
+         */
+        @CheckForNull
+        static Entry of(Object v, long expires) {
+            if (v==null || v instanceof Enum || IMMUTABLES.contains(v.getClass()))
+                return new Entry(v, null, expires);
+            try {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(buf);
+                oos.writeObject(v);
+                oos.close();
+                return new Entry(null, buf.toByteArray(), expires);
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Not caching "+v.getClass()+" that can't be copied", e);
+                return null;
+            } catch (RuntimeException e) {
+                // such as remoting proxies outside their channel
+                LOGGER.log(FINE, "Not caching "+v.getClass()+" that can't be copied", e);
+                return null;
+            }
+        }
+    }
+
+    private static final Set<Class<?>> IMMUTABLES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Byte.class, Character.class, Short.class, Integer.class, Long.class, Float.class, Double.class));
+
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class.getName());
+}
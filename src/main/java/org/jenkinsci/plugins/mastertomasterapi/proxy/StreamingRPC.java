@@ -0,0 +1,353 @@
+package org.jenkinsci.plugins.mastertomasterapi.proxy;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pair of {@link RPC} filter objects that lets a method return a large number of items as an {@link Iterator},
+ * without materializing them all on either side.
+ *
+ * <p>
+ * When a method that's declared to return {@link Iterator} (or {@link RemoteIterator}) returns one on the receiver,
+ * the receiver side exports it as a {@link ChunkSource},
+ * and the caller side gets a {@link RemoteIterator} that pulls items from it in chunks. The caller grants
+ * the receiver the credit of how many items to send in the next chunk, starting small and growing as the caller
+ * keeps consuming, so neither side buffers more than one chunk. The caller can {@linkplain RemoteIterator#close() close}
+ * the iterator to stop early, and the source is closed automatically when it's exhausted. If the
+ * {@link Iterator} returned from the receiver is also {@link Closeable}, it gets closed in both cases.
+ * Methods declared to return anything else, such as {@link java.util.ListIterator} or {@link Object}, get
+ * their return values as they are.
+ *
+ * <p>
+ * Transports can use {@link ChunkSourceTable} to export all the sources on one connection at once,
+ * so that each source is dropped as soon as it's closed or exhausted.
+ *
+ * <p>
+ * Items are produced with the same {@link Authentication} as the call that returned the iterator.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class StreamingRPC {
+    private StreamingRPC() {} // no instantiation please
+
+    /**
+     * Exports an object to the caller side, as the transport sees fit.
+     *
+     * @see ChunkSourceTable
+     */
+    public interface Exporter {
+        <T> T export(Class<T> type, T instance);
+    }
+
+    /**
+     * Remote end of an iterator.
+     */
+    public interface ChunkSource {
+        /**
+         * Retrieves up to the given number of items.
+         */
+        Chunk next(int credit) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Remote end of all the iterators on one connection, by their IDs.
+     */
+    public interface ChunkSources {
+        Chunk next(long id, int credit) throws IOException;
+
+        void close(long id) throws IOException;
+    }
+
+    /**
+     * Keeps the {@link ChunkSource}s of one connection, so that the transport exports this once instead of
+     * each source. A source is removed as soon as it's closed or exhausted, rather than when the caller side
+     * gets around to garbage-collecting its reference to it.
+     */
+    public static final class ChunkSourceTable implements ChunkSources {
+        private final ConcurrentMap<Long,ChunkSource> sources = new ConcurrentHashMap<Long,ChunkSource>();
+        private final AtomicLong counter = new AtomicLong();
+
+        /**
+         * @param exported
+         *      This table as exported to the caller side.
+         * @return
+         *      What the {@link Exporter} should return in place of the source.
+         */
+        public ChunkSource add(ChunkSource source, ChunkSources exported) {
+            long id = counter.incrementAndGet();
+            sources.put(id, source);
+            return new ChunkSourceRef(id, exported);
+        }
+
+        public Chunk next(long id, int credit) throws IOException {
+            ChunkSource s = sources.get(id);
+            if (s==null)
+                throw new IOException("Iterator "+id+" is already closed");
+            Chunk c = s.next(credit);
+            if (c.isLast())
+                sources.remove(id, s);
+            return c;
+        }
+
+        public void close(long id) throws IOException {
+            ChunkSource s = sources.remove(id);
+            if (s!=null)
+                s.close();
+        }
+
+        /**
+         * Number of sources that are neither closed nor exhausted.
+         */
+        public int size() {
+            return sources.size();
+        }
+    }
+
+    /**
+     * {@link ChunkSource} on the caller side that goes through {@link ChunkSources}.
+     */
+    private static final class ChunkSourceRef implements ChunkSource, Serializable {
+        private final long id;
+        private final ChunkSources table;
+
+        private ChunkSourceRef(long id, ChunkSources table) {
+            this.id = id;
+            this.table = table;
+        }
+
+        public Chunk next(int credit) throws IOException {
+            return table.next(id, credit);
+        }
+
+        public void close() throws IOException {
+            table.close(id);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Items in one transfer from {@link ChunkSource}.
+     */
+    public static final class Chunk implements Serializable {
+        private final List<Object> items;
+        /**
+         * True if there's no more item after this.
+         */
+        private final boolean last;
+
+        private Chunk(List<Object> items, boolean last) {
+            this.items = items;
+            this.last = last;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * What the caller gets in place of the {@link Iterator} the receiver returned.
+     */
+    public interface RemoteIterator<T> extends Iterator<T>, Closeable {
+    }
+
+    public static RPC sender(final RPC receiver) {
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                return unwrap(receiver.call(methodName, arguments, context));
+            }
+        };
+    }
+
+    public static AsyncRPC sender(final AsyncRPC receiver) {
+        return new AsyncRPC() {
+            public Future<Object> callAsync(String methodName, List<Argument> arguments, Set<Object> context) throws IOException {
+                return Futures.lazyTransform(receiver.callAsync(methodName, arguments, context), new Function<Object,Object>() {
+                    public Object apply(Object v) {
+                        return unwrap(v);
+                    }
+                });
+            }
+        };
+    }
+
+    private static Object unwrap(Object v) {
+        if (v instanceof Handle)
+            return new ChunkedIterator(((Handle)v).source);
+        return v;
+    }
+
+    /**
+     * @param service
+     *      Interface that the calls are made through, whose method signatures tell which return values to stream.
+     * @param exporter
+     *      Used to make {@link ChunkSource}s available to the caller side.
+     */
+    public static RPC receiver(final RPC receiver, Class<?> service, final Exporter exporter) {
+        // signatures of methods that return an iterator, by their names
+        final Map<String,Set<List<Class<?>>>> streamed = new HashMap<String,Set<List<Class<?>>>>();
+        // names whose every overload returns an iterator, for callers that don't tell the argument types
+        final Set<String> allStreamed = new HashSet<String>();
+        final Set<String> notStreamed = new HashSet<String>();
+        for (Method m : service.getMethods()) {
+            if (m.getReturnType()==Iterator.class || m.getReturnType()==RemoteIterator.class) {
+                Set<List<Class<?>>> overloads = streamed.get(m.getName());
+                if (overloads==null)
+                    streamed.put(m.getName(), overloads = new HashSet<List<Class<?>>>());
+                overloads.add(Arrays.<Class<?>>asList(m.getParameterTypes()));
+                allStreamed.add(m.getName());
+            } else {
+                notStreamed.add(m.getName());
+            }
+        }
+        allStreamed.removeAll(notStreamed);
+        if (streamed.isEmpty())
+            return receiver;    // nothing to stream
+
+        return new RPC() {
+            public Object call(String methodName, List<Argument> arguments, Set<Object> context) throws Throwable {
+                Object v = receiver.call(methodName, arguments, context);
+                if (v instanceof Iterator && isStreamed(methodName, arguments))
+                    return new Handle(exporter.export(ChunkSource.class, new IteratorChunkSource((Iterator)v)));
+                return v;
+            }
+
+            private boolean isStreamed(String methodName, List<Argument> arguments) {
+                Set<List<Class<?>>> overloads = streamed.get(methodName);
+                if (overloads==null)    return false;
+                Class<?>[] types = new Class<?>[arguments.size()];
+                for (int i=0; i<types.length; i++)
+                    types[i] = arguments.get(i).type;
+                return overloads.contains(Arrays.asList(types)) || allStreamed.contains(methodName);
+            }
+        };
+    }
+
+    /**
+     * Sent to the caller in place of the return value.
+     */
+    private static final class Handle implements Serializable {
+        private final ChunkSource source;
+
+        private Handle(ChunkSource source) {
+            this.source = source;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class IteratorChunkSource implements ChunkSource {
+        private final Iterator<?> iterator;
+        private final Authentication auth = Jenkins.getAuthentication();
+        private boolean closed;
+
+        private IteratorChunkSource(Iterator<?> iterator) {
+            this.iterator = iterator;
+        }
+
+        public synchronized Chunk next(int credit) throws IOException {
+            if (closed)
+                return new Chunk(new ArrayList<Object>(), true);
+
+            SecurityContext old = ACL.impersonate(auth);
+            try {
+                credit = Math.max(1, Math.min(credit, MAX_CREDIT));
+                List<Object> items = new ArrayList<Object>(credit);
+                while (items.size()<credit && iterator.hasNext())
+                    items.add(iterator.next());
+
+                boolean last = !iterator.hasNext();
+                if (last)
+                    close();
+                return new Chunk(items, last);
+            } finally {
+                SecurityContextHolder.setContext(old);
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            if (closed)     return;
+            closed = true;
+            if (iterator instanceof Closeable)
+                ((Closeable)iterator).close();
+        }
+    }
+
+    private static final class ChunkedIterator implements RemoteIterator<Object> {
+        private final ChunkSource source;
+        private Iterator<Object> buffer;
+        private boolean last;
+        private int credit = INITIAL_CREDIT;
+
+        private ChunkedIterator(ChunkSource source) {
+            this.source = source;
+        }
+
+        public boolean hasNext() {
+            while ((buffer==null || !buffer.hasNext()) && !last) {
+                try {
+                    Chunk c = source.next(credit);
+                    buffer = c.items.iterator();
+                    last = c.last;
+                    credit = Math.min(credit*2, MAX_CREDIT);  // the consumer is keeping up. ask for more
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to retrieve the next items", e);
+                }
+            }
+            return buffer!=null && buffer.hasNext();
+        }
+
+        public Object next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return buffer.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException {
+            if (!last) {
+                last = true;
+                buffer = null;
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Number of items requested in the first chunk. It doubles every time, up to {@link #MAX_CREDIT}.
+     */
+    public static int INITIAL_CREDIT = Integer.getInteger(StreamingRPC.class.getName()+".initialCredit", 16);
+
+    public static int MAX_CREDIT = Integer.getInteger(StreamingRPC.class.getName()+".maxCredit", 1024);
+}
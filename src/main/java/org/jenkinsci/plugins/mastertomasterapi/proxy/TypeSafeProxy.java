@@ -3,33 +3,129 @@ package org.jenkinsci.plugins.mastertomasterapi.proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 /**
  * Creates a type-safe proxy object that calls into a {@link RPC} object.
  *
+ * <p>
+ * Everything about a call that only depends on the invoked {@link Method} is computed once
+ * per method as a {@link CallSite}, so that the invocation only allocates what's necessary to
+ * carry the argument values.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class TypeSafeProxy implements InvocationHandler {
     public static <T> T create(Class<T> type, RPC receiver) {
-        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new TypeSafeProxy(receiver)));
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new TypeSafeProxy(type, receiver)));
+    }
+
+    /**
+     * Creates a type-safe proxy object that makes asynchronous calls.
+     *
+     * @param type
+     *      Every method on this interface must be declared to return {@link Future}, which receives
+     *      the return value of the method of the same name and arguments on the receiver side.
+     */
+    public static <T> T createAsync(Class<T> type, AsyncRPC receiver) {
+        for (Method m : type.getMethods()) {
+            if (m.getDeclaringClass()!=Object.class && m.getReturnType()!=Future.class)
+                throw new IllegalArgumentException(m+" doesn't return "+Future.class.getName());
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new TypeSafeProxy(type, receiver)));
     }
 
     private final RPC receiver;
 
+    private final AsyncRPC asyncReceiver;
+
+    private final ConcurrentMap<Method,CallSite> callSites = new ConcurrentHashMap<Method,CallSite>();
+
     public TypeSafeProxy(RPC receiver) {
         this.receiver = receiver;
+        this.asyncReceiver = null;
+    }
+
+    /**
+     * Creates a proxy for the given interface, with its call sites computed upfront.
+     */
+    public TypeSafeProxy(Class<?> type, RPC receiver) {
+        this(receiver);
+        computeCallSites(type);
+    }
+
+    private TypeSafeProxy(Class<?> type, AsyncRPC asyncReceiver) {
+        this.receiver = null;
+        this.asyncReceiver = asyncReceiver;
+        computeCallSites(type);
+    }
+
+    private void computeCallSites(Class<?> type) {
+        for (Method m : type.getMethods())
+            if (m.getDeclaringClass()!=Object.class)
+                callSites.put(m, new CallSite(m));
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        List<Argument> a = new ArrayList<Argument>(args.length);
-        Class<?>[] types = method.getParameterTypes();
+        if (method.getDeclaringClass()==Object.class)
+            return invokeObjectMethod(proxy, method, args);
+
+        CallSite site = callSites.get(method);
+        if (site==null) {
+            site = new CallSite(method);
+            callSites.putIfAbsent(method, site);
+        }
+
+        if (asyncReceiver!=null)
+            return asyncReceiver.callAsync(site.methodName, site.toArguments(args), site.context);
+        return receiver.call(site.methodName, site.toArguments(args), site.context);
+    }
+
+    /**
+     * {@link Object} methods are answered locally instead of making a round trip,
+     * so that proxies can be safely put into collections.
+     */
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) throws Throwable {
+        String n = method.getName();
+        if (n.equals("equals"))
+            return proxy==args[0];
+        if (n.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        if (n.equals("toString"))
+            return "TypeSafeProxy["+proxy.getClass().getInterfaces()[0].getName()+"] to "+(asyncReceiver!=null ? asyncReceiver : receiver);
+        return method.invoke(this, args);
+    }
+
+    /**
+     * Pre-computed information about calling a specific method.
+     */
+    private static final class CallSite {
+        private final String methodName;
+        private final Class<?>[] parameterTypes;
+        /**
+         * Context passed to the receiver, shared across calls as it's immutable.
+         */
+        private final Set<Object> context = Collections.emptySet();
+
+        private CallSite(Method m) {
+            this.methodName = m.getName();
+            this.parameterTypes = m.getParameterTypes();
+        }
 
-        for (int i=0; i<args.length; i++)
-            a.add(new Argument(types[i], null /*TODO*/, args[i]));
+        private List<Argument> toArguments(Object[] args) {
+            if (args==null || args.length==0)
+                return Collections.emptyList();   // methods without any argument get null
 
-        return receiver.call(method.getName(), a, Collections.emptySet());
+            Argument[] a = new Argument[args.length];
+            for (int i=0; i<args.length; i++)
+                a[i] = new Argument(parameterTypes[i], null /*TODO*/, args[i]);
+            return Arrays.asList(a);
+        }
     }
 }
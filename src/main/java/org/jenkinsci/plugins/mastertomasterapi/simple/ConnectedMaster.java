@@ -1,10 +1,19 @@
 package org.jenkinsci.plugins.mastertomasterapi.simple;
 
+import hudson.Util;
 import hudson.remoting.Channel;
+import hudson.remoting.Channel.Listener;
 import org.jenkinsci.plugins.mastertomasterapi.AbstractChannelBasedMasterImpl;
+import org.jenkinsci.plugins.mastertomasterapi.TransferReport;
+import org.jenkinsci.plugins.mastertomasterapi.TransferTicket;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.security.PublicKey;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -13,11 +22,34 @@ public class ConnectedMaster extends AbstractChannelBasedMasterImpl {
     private final PublicKey key;
     private final Channel channel;
     private final URL url;
+    /**
+     * Encryption and compression of the connection if it speaks {@link SIMProtocol2}, or null.
+     */
+    /*package*/ volatile RecordLayer records;
+    /**
+     * Second connection to the same master for {@link org.jenkinsci.plugins.mastertomasterapi.proxy.Bulk} calls, if any.
+     */
+    private volatile Channel bulk;
+
+    /*package*/ final Heartbeat.Liveness liveness;
+    /**
+     * Liveness of {@link #bulk}, or null if there's none.
+     */
+    /*package*/ volatile Heartbeat.Liveness bulkLiveness;
 
     public ConnectedMaster(PublicKey key, Channel channel, URL url) {
+        this(key, channel, url, new Heartbeat.Liveness());
+    }
+
+    /**
+     * @param liveness
+     *      Watches the input of the channel.
+     */
+    /*package*/ ConnectedMaster(PublicKey key, Channel channel, URL url, Heartbeat.Liveness liveness) {
         this.key = key;
         this.channel = channel;
         this.url = url;
+        this.liveness = liveness;
     }
 
     @Override
@@ -30,6 +62,88 @@ public class ConnectedMaster extends AbstractChannelBasedMasterImpl {
         return channel;
     }
 
+    /**
+     * The bulk channel if it's open, or else {@link #getChannel()}.
+     */
+    @Override
+    public Channel getBulkChannel() {
+        Channel b = bulk;
+        return b!=null ? b : channel;
+    }
+
+    /*package*/ void attachBulkChannel(final Channel ch, Heartbeat.Liveness liveness) {
+        Channel old = bulk;
+        bulkLiveness = liveness;
+        bulk = ch;
+        ch.addListener(new Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                if (bulk==ch)
+                    bulk = null;
+            }
+        });
+        if (old!=null)
+            close(old);
+    }
+
+    /**
+     * Called when {@link #channel} is closed.
+     */
+    /*package*/ void onClosed() {
+        closeBulkChannel();
+        for (ConnectedMaster cm : SIMConnectionSet.get()) {
+            if (cm.key.equals(key))
+                return;     // already reconnected, and the new connection carries on with the same metrics
+        }
+        discardMetrics();
+    }
+
+    private void closeBulkChannel() {
+        Channel b = bulk;
+        if (b!=null)
+            close(b);
+    }
+
+    private void close(Channel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Failed to close the bulk channel to "+url, e);
+        }
+    }
+
+    /**
+     * Smoothed round trip time to this master in milliseconds, as measured by {@link Heartbeat}, or -1 if not known yet.
+     */
+    public double getRoundTripMillis() {
+        return liveness.getAverageMillis();
+    }
+
+    /**
+     * Longest of the recent round trip times in milliseconds, or -1 if not known yet.
+     */
+    public double getMaxRoundTripMillis() {
+        return liveness.getRecentMaxMillis();
+    }
+
+    /**
+     * {@link System#currentTimeMillis()} when something last arrived from this master on the channel,
+     * or when it got connected if nothing has yet.
+     */
+    public long getLastSeen() {
+        return liveness.getLastSeen();
+    }
+
+    /**
+     * Human readable summary of the above.
+     */
+    public String getLivenessSummary() {
+        String seen = "last seen "+Util.getTimeSpanString(System.currentTimeMillis()-getLastSeen())+" ago";
+        if (getRoundTripMillis()<0)
+            return seen;
+        return String.format("%.1fms (recent max %.1fms), %s", getRoundTripMillis(), getMaxRoundTripMillis(), seen);
+    }
+
     @Override
     public URL getURL() {
         return url;
@@ -38,4 +152,45 @@ public class ConnectedMaster extends AbstractChannelBasedMasterImpl {
     public String getDisplayName() {
         return url.toExternalForm();
     }
+
+    /**
+     * Human readable description of how the data is protected and compressed on the wire.
+     */
+    public String getTransport() {
+        RecordLayer r = records;
+        if (r==null)
+            return "AES/CFB8";
+        return r.getSuite()+(r.getCompression()!=null ? "+"+r.getCompression() : "")+(bulk!=null ? ", with a bulk channel" : "");
+    }
+
+    /**
+     * Compression ratio of the data sent to this master, or null if it's not compressed.
+     */
+    public String getCompressionStats() {
+        RecordLayer r = records;
+        if (r==null || r.getCompression()==null)
+            return null;
+        return r.getStats().toString();
+    }
+
+    /**
+     * Uses a {@linkplain SIMTransferProtocol side connection} if enabled and the session supports it,
+     * and falls back to the channel if the side connection fails before the receiver takes the ticket.
+     */
+    @Override
+    protected TransferReport doTransfer(File source, long offset, TransferTicket ticket) throws IOException, InterruptedException {
+        RecordLayer r = records;
+        if (SIMTransferProtocol.ENABLED && r!=null) {
+            try {
+                return SIMTransferProtocol.send(new SIMClient().getCliTcpPort(url), r, source, offset, ticket);
+            } catch (SIMTransferProtocol.TicketClaimedException e) {
+                throw e;    // the ticket is used up, so the channel would only say it doesn't know the ticket
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to transfer "+source+" over a side connection to "+url+". Falling back to the channel", e);
+            }
+        }
+        return super.doTransfer(source, offset, ticket);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectedMaster.class.getName());
 }
@@ -0,0 +1,196 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Pings every {@link ConnectedMaster} periodically, to measure the round trip time and to notice a connection
+ * that has silently died, instead of waiting for some call to hang on it.
+ *
+ * <p>
+ * A master from which nothing has arrived for {@link #DEAD_AFTER}, neither a response to a ping nor anything else,
+ * gets disconnected, which drops it from {@link SIMConnectionSet} and lets {@link SIMConnector} connect to it again.
+ * So a master that's busy sending a lot over the channel is alive even if the pings are stuck behind the data.
+ * The {@linkplain ConnectedMaster#getBulkChannel() bulk channel} is pinged separately, and a dead one is closed
+ * on its own, after which the bulk calls go to the channel. Pings aren't calls to services,
+ * so they don't keep an otherwise idle connection from {@linkplain LazyMaster.IdleReaper getting closed}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Extension
+public class Heartbeat extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+        return INTERVAL;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        for (ConnectedMaster cm : SIMConnectionSet.get()) {
+            beat(cm, cm.getChannel(), cm.liveness);
+            Channel bulk = cm.getBulkChannel();
+            Liveness bl = cm.bulkLiveness;
+            if (bulk!=cm.getChannel() && bl!=null)
+                beat(cm, bulk, bl);
+        }
+    }
+
+    private void beat(ConnectedMaster cm, Channel ch, Liveness liveness) {
+        if (liveness.pinging.compareAndSet(false,true))
+            EXECUTOR.submit(new Beat(cm, ch, liveness));
+    }
+
+    /**
+     * Round trip times of one channel, and when something last arrived on it.
+     */
+    /*package*/ static final class Liveness {
+        /**
+         * True while a ping is outstanding, so that a slow master doesn't get more than one at a time.
+         */
+        private final AtomicBoolean pinging = new AtomicBoolean();
+        /**
+         * Round trip times of the last several pings in nanoseconds, for the recent maximum.
+         */
+        private final long[] recent = new long[16];
+        private int count;
+        /**
+         * Exponentially weighted moving average of the round trip time in nanoseconds, or -1 if not measured yet.
+         */
+        private double average = -1;
+        /**
+         * {@link System#currentTimeMillis()} when something last arrived, or of the connection before anything.
+         */
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        /**
+         * Wraps the input of the channel, so that any data from the other side counts as a sign of life.
+         */
+        InputStream watch(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b>=0)
+                        lastSeen = System.currentTimeMillis();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n>0)
+                        lastSeen = System.currentTimeMillis();
+                    return n;
+                }
+            };
+        }
+
+        synchronized void record(long rtt) {
+            recent[count++%recent.length] = rtt;
+            // same weight as the smoothed RTT of TCP
+            average = average<0 ? rtt : average+(rtt-average)/8;
+            lastSeen = System.currentTimeMillis();
+        }
+
+        synchronized double getAverageMillis() {
+            return average<0 ? -1 : average/1000000;
+        }
+
+        synchronized double getRecentMaxMillis() {
+            if (count==0)
+                return -1;
+            long max = 0;
+            for (int i=0; i<Math.min(count,recent.length); i++)
+                max = Math.max(max, recent[i]);
+            return max/1000000.0;
+        }
+
+        long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private static final class Beat implements Runnable {
+        private final ConnectedMaster cm;
+        private final Channel ch;
+        private final Liveness liveness;
+
+        Beat(ConnectedMaster cm, Channel ch, Liveness liveness) {
+            this.cm = cm;
+            this.ch = ch;
+            this.liveness = liveness;
+        }
+
+        public void run() {
+            try {
+                long start = System.nanoTime();
+                Future<Void> f = ch.callAsync(new Ping());
+                try {
+                    f.get(INTERVAL, TimeUnit.MILLISECONDS);
+                    liveness.record(System.nanoTime()-start);
+                } catch (TimeoutException e) {
+                    f.cancel(true);
+                    LOGGER.log(FINE, cm.getURL()+" didn't respond to a ping in "+INTERVAL+"ms");
+                }
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to ping "+cm.getURL(), e);
+            } catch (ExecutionException e) {
+                LOGGER.log(FINE, "Failed to ping "+cm.getURL(), e);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                liveness.pinging.set(false);
+            }
+
+            long silence = System.currentTimeMillis()-liveness.getLastSeen();
+            if (silence>DEAD_AFTER) {
+                LOGGER.log(WARNING, "Nothing has arrived from "+cm.getURL()+" on "+ch.getName()+" for "+silence+"ms. Closing it");
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    LOGGER.log(FINE, "Failed to close the channel to "+cm.getURL(), e);
+                }
+            }
+        }
+    }
+
+    private static final class Ping implements Callable<Void,IOException> {
+        public Void call() throws IOException {
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Milliseconds between pings to each master.
+     */
+    public static long INTERVAL = Long.getLong(Heartbeat.class.getName()+".interval", TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * Milliseconds without a response after which a master is considered dead.
+     */
+    public static long DEAD_AFTER = Long.getLong(Heartbeat.class.getName()+".deadAfter", TimeUnit.SECONDS.toMillis(60));
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Integer.getInteger(Heartbeat.class.getName()+".threads", 4), new DaemonThreadFactory());
+
+    private static final Logger LOGGER = Logger.getLogger(Heartbeat.class.getName());
+}
@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.remoting.Channel;
+import org.jenkinsci.plugins.mastertomasterapi.Master;
+import org.jenkinsci.plugins.mastertomasterapi.TransferReport;
+import org.jenkinsci.plugins.mastertomasterapi.TransferTicket;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * {@link Master} for a {@link RegisteredMaster} that connects to it when it's first used,
+ * as opposed to {@link ConnectedMaster}, which only exists while connected.
+ *
+ * <p>
+ * All the callers share one connection, which is the {@link ConnectedMaster} in {@link SIMConnectionSet}
+ * regardless of which side has initiated it. Connections that stay unused for {@link #IDLE_TIMEOUT}
+ * get closed by {@link IdleReaper}, and the next call connects again. While not connected, this master
+ * is in {@link RegisteredMasterSet} instead. Proxies from {@link #getService(Class)}
+ * are tied to the connection at that time, so get them from here each time instead of keeping them.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see RegisteredMaster#getMaster()
+ */
+public class LazyMaster extends Master {
+    private final RegisteredMaster registration;
+
+    /**
+     * Number of times in a row {@link #connect()} has failed. Guarded by this.
+     */
+    private int failures;
+
+    /**
+     * {@link System#currentTimeMillis()} until which {@link #connect()} fails right away after a failure,
+     * as per {@link SIMConnector#backoff(int)}.
+     */
+    private volatile long retryAfter;
+
+    /*package*/ LazyMaster(RegisteredMaster registration) {
+        this.registration = registration;
+    }
+
+    /**
+     * Gets the connection to this master, connecting to it if need be.
+     *
+     * <p>
+     * After a failure, calls fail right away for a while, so that callers don't each wait for a master that's down.
+     *
+     * @return null if the connection fails.
+     */
+    @CheckForNull
+    public ConnectedMaster connect() {
+        ConnectedMaster c = getConnection();
+        if (c!=null)
+            return c;
+        if (System.currentTimeMillis()<retryAfter)
+            return null;
+
+        synchronized (this) {
+            if (System.currentTimeMillis()<retryAfter)
+                return getConnection();     // another thread has just failed while we were waiting
+            try {
+                return connectOrFail();
+            } catch (IOException e) {
+                long d = SIMConnector.backoff(++failures);
+                retryAfter = System.currentTimeMillis()+d;
+                // warn about the first failure only, instead of every time this master is used while it's down
+                LOGGER.log(failures==1 ? WARNING : FINE, "Failed to connect to "+getURL()+". Not trying again for "+d+"ms", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Connects to this master unless it's already connected.
+     */
+    /*package*/ synchronized ConnectedMaster connectOrFail() throws IOException {
+        ConnectedMaster c = getConnection();    // some other thread may have connected while we were waiting
+        if (c==null) {
+            LOGGER.fine("Connecting to "+getURL());
+            c = new SIMClient().connect(getURL());
+        }
+        failures = 0;
+        retryAfter = 0;
+        return c;
+    }
+
+    /**
+     * Gets the current connection to this master, without connecting.
+     */
+    @CheckForNull
+    public ConnectedMaster getConnection() {
+        return SIMConnectionSet.get().get(getPublicKey());
+    }
+
+    public boolean isConnected() {
+        return getConnection()!=null;
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return registration.getKey();
+    }
+
+    @Override
+    public URL getURL() {
+        return registration.getURL();
+    }
+
+    public String getDisplayName() {
+        return getURL().toExternalForm();
+    }
+
+    @Override
+    public Channel getChannel() {
+        ConnectedMaster c = connect();
+        return c!=null ? c.getChannel() : null;
+    }
+
+    @Override
+    public Channel getBulkChannel() {
+        ConnectedMaster c = connect();
+        return c!=null ? c.getBulkChannel() : null;
+    }
+
+    @Override
+    public <T> T getService(Class<T> type) {
+        ConnectedMaster c = connect();
+        return c!=null ? c.getService(type) : null;
+    }
+
+    @Override
+    public void prefetchServices(Class<?>... types) throws IOException, InterruptedException {
+        ConnectedMaster c = connect();
+        if (c!=null)
+            c.prefetchServices(types);
+    }
+
+    @Override
+    public <T> T getAsyncService(Class<?> type, Class<T> asyncView) {
+        ConnectedMaster c = connect();
+        return c!=null ? c.getAsyncService(type, asyncView) : null;
+    }
+
+    @Override
+    public <V> V batch(java.util.concurrent.Callable<V> body) throws Exception {
+        ConnectedMaster c = connect();
+        return c!=null ? c.batch(body) : body.call();
+    }
+
+    @Override
+    public TransferReport transfer(File source, long offset, TransferTicket ticket) throws IOException, InterruptedException {
+        ConnectedMaster c = connect();
+        if (c==null)
+            throw new IOException("Failed to connect to "+getURL());
+        return c.transfer(source, offset, ticket);
+    }
+
+    /**
+     * Closes connections to other masters that haven't been used for {@link #IDLE_TIMEOUT},
+     * and that have no call, transfer, or iterator in progress.
+     */
+    @Extension
+    public static class IdleReaper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return Math.max(MIN, IDLE_TIMEOUT/2);
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            if (IDLE_TIMEOUT<=0)
+                return;
+            for (ConnectedMaster c : SIMConnectionSet.get()) {
+                if (c.isIdleFor(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    LOGGER.fine("Disconnecting from "+c.getURL()+" as it's been idle");
+                    try {
+                        c.getChannel().close();
+                    } catch (IOException e) {
+                        LOGGER.log(FINE, "Failed to close the channel to "+c.getURL(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Milliseconds a connection to another master can go unused before it gets closed. 0 keeps connections open.
+     */
+    public static long IDLE_TIMEOUT = Long.getLong(LazyMaster.class.getName()+".idleTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    private static final Logger LOGGER = Logger.getLogger(LazyMaster.class.getName());
+}
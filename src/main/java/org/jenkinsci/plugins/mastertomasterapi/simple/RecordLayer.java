@@ -0,0 +1,712 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Util;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encrypts and authenticates a connection in records of up to {@link #RECORD_SIZE} bytes,
+ * as opposed to the byte-at-a-time stream cipher of the original protocol.
+ *
+ * <p>
+ * Each record is sent as its length followed by the sealed data. Each direction has its own keys derived
+ * from the shared secret, and records are numbered in each direction, so a record that's tampered with,
+ * dropped, reordered, or replayed fails the authentication on the receiving side.
+ *
+ * <p>
+ * Two suites are available. {@link #AES_GCM} is preferred, but it's only available on Java 8 and later.
+ * {@link #AES_CTR_HMAC} works everywhere, and encrypts with AES in the counter mode, then authenticates with HMAC-SHA256.
+ *
+ * <p>
+ * Optionally, each record is compressed before it's encrypted. Records that are too small to be worth it,
+ * and records that don't get smaller, are sent as is, and a connection that keeps sending incompressible
+ * data stops trying for a while. Note that compressing data before encryption reveals its compressibility
+ * through the size of the records.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class RecordLayer {
+    static final String AES_GCM = "AES-GCM";
+    static final String AES_CTR_HMAC = "AES-CTR-HMAC-SHA256";
+
+    static final String DEFLATE = "deflate";
+
+    private final String suite;
+    private final byte[] secret;
+    private final boolean isClient;
+    /**
+     * {@link #DEFLATE} to compress records, or null.
+     */
+    private final String compression;
+    /**
+     * {@link Deflater} level to compress the records we send.
+     */
+    private final int level;
+    private final Stats stats = new Stats();
+
+    RecordLayer(String suite, byte[] secret, boolean isClient, String compression, int level) {
+        this.suite = suite;
+        this.secret = secret;
+        this.isClient = isClient;
+        this.compression = compression;
+        this.level = level;
+    }
+
+    String getSuite() {
+        return suite;
+    }
+
+    /**
+     * @return null if the records aren't compressed.
+     */
+    String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compression of the records sent so far.
+     */
+    Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Compression algorithms this JVM supports, most preferred first.
+     */
+    static List<String> getSupportedCompressions() {
+        if (DISABLE_COMPRESSION)
+            return Collections.emptyList();
+        return Collections.singletonList(DEFLATE);
+    }
+
+    /**
+     * Suites this JVM supports, most preferred first.
+     */
+    static List<String> getSupportedSuites() {
+        List<String> r = new ArrayList<String>();
+        if (GCM_SPEC!=null && !DISABLE_GCM) {
+            try {
+                Cipher.getInstance("AES/GCM/NoPadding");
+                r.add(AES_GCM);
+            } catch (GeneralSecurityException e) {
+                // not available
+            }
+        }
+        r.add(AES_CTR_HMAC);
+        return r;
+    }
+
+    /**
+     * Picks the suite to use among the ones the client offered, or null if none works for us.
+     */
+    static String choose(List<String> offered) {
+        for (String s : getSupportedSuites())
+            if (offered.contains(s))
+                return s;
+        return null;
+    }
+
+    /**
+     * Record layer for another connection between the same two masters, such as a {@link SIMTransferProtocol}
+     * side connection. Its keys are derived from the secret of this session and the given nonce, which
+     * needs to be unique for each connection.
+     */
+    RecordLayer fork(String nonce, boolean isClient) throws GeneralSecurityException {
+        return new RecordLayer(suite, derive("fork "+nonce, 32), isClient, compression, level);
+    }
+
+    /**
+     * Identifies this session to the other side, without revealing anything about its keys.
+     */
+    String getSessionId() throws GeneralSecurityException {
+        return Util.toHexString(derive("session id", 16));
+    }
+
+    /**
+     * Stream to read records that the other side has sealed.
+     */
+    InputStream wrap(InputStream raw) throws GeneralSecurityException {
+        return new RecordInputStream(raw, createProtection(!isClient));
+    }
+
+    /**
+     * Stream to seal data in records. Data is sent when a record fills up, or upon {@link OutputStream#flush()}.
+     */
+    OutputStream wrap(OutputStream raw) throws GeneralSecurityException {
+        return new RecordOutputStream(raw, createProtection(isClient));
+    }
+
+    /**
+     * @param client
+     *      true for the records that the client sends.
+     */
+    private Protection createProtection(boolean client) throws GeneralSecurityException {
+        String dir = client ? "client" : "server";
+        if (suite.equals(AES_GCM))
+            return new GcmProtection(derive("enc "+dir, 16));
+        if (suite.equals(AES_CTR_HMAC))
+            return new CtrHmacProtection(derive("enc "+dir, 16), derive("mac "+dir, 32));
+        throw new GeneralSecurityException("Unknown suite: "+suite);
+    }
+
+    private byte[] derive(String label, int len) throws GeneralSecurityException {
+        return derive(secret, label, len);
+    }
+
+    /**
+     * Derives a key of the given length for the given purpose from the secret.
+     */
+    static byte[] derive(byte[] secret, String label, int len) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        try {
+            return Arrays.copyOf(mac.doFinal(("sim2 "+label).getBytes("UTF-8")), len);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Seals and opens records in one direction.
+     */
+    private static abstract class Protection {
+        /**
+         * Number of bytes that a sealed record has on top of the data.
+         */
+        abstract int overhead();
+
+        /**
+         * @return the length of the sealed record written to {@code out}
+         */
+        abstract int seal(long seq, byte[] in, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+        /**
+         * @return the length of the data written to {@code out}
+         */
+        abstract int open(long seq, byte[] in, int len, byte[] out) throws GeneralSecurityException, IOException;
+    }
+
+    private static final class GcmProtection extends Protection {
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] nonce = new byte[12];
+
+        GcmProtection(byte[] key) throws GeneralSecurityException {
+            this.key = new SecretKeySpec(key, "AES");
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        int overhead() {
+            return 16;
+        }
+
+        /**
+         * Record number is the nonce. Keys are never shared between the directions, so it's never reused.
+         */
+        private AlgorithmParameterSpec spec(long seq) throws GeneralSecurityException {
+            for (int i=0; i<8; i++)
+                nonce[4+i] = (byte)(seq>>>(56-i*8));
+            try {
+                return GCM_SPEC.newInstance(128, nonce);
+            } catch (Exception e) {
+                throw new GeneralSecurityException(e);
+            }
+        }
+
+        int seal(long seq, byte[] in, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            cipher.init(Cipher.ENCRYPT_MODE, key, spec(seq));
+            return cipher.doFinal(in, 0, len, out, outOff);
+        }
+
+        int open(long seq, byte[] in, int len, byte[] out) throws GeneralSecurityException, IOException {
+            cipher.init(Cipher.DECRYPT_MODE, key, spec(seq));
+            return cipher.doFinal(in, 0, len, out, 0);    // fails if the record doesn't pass the authentication
+        }
+    }
+
+    private static final class CtrHmacProtection extends Protection {
+        private final Cipher cipher;
+        private final Mac mac;
+        private final byte[] seqBytes = new byte[8];
+        private final byte[] tag = new byte[32];
+
+        CtrHmacProtection(byte[] key, byte[] macKey) throws GeneralSecurityException {
+            // each direction has its own key, so the counter can start from zero.
+            // the cipher keeps counting across records, as records are processed in order
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        }
+
+        int overhead() {
+            return 32;
+        }
+
+        private void macSeq(long seq) {
+            for (int i=0; i<8; i++)
+                seqBytes[i] = (byte)(seq>>>(56-i*8));
+            mac.update(seqBytes);
+        }
+
+        int seal(long seq, byte[] in, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            int n = cipher.update(in, 0, len, out, outOff);
+            macSeq(seq);
+            mac.update(out, outOff, n);
+            mac.doFinal(out, outOff+n);
+            return n+32;
+        }
+
+        int open(long seq, byte[] in, int len, byte[] out) throws GeneralSecurityException, IOException {
+            int n = len-32;
+            if (n<0)
+                throw new IOException("Record is too short");
+            macSeq(seq);
+            mac.update(in, 0, n);
+            mac.doFinal(tag, 0);
+            if (!MessageDigest.isEqual(tag, Arrays.copyOfRange(in, n, len)))
+                throw new IOException("Record failed the authentication");
+            return cipher.update(in, 0, n, out, 0);     // CTR is symmetric
+        }
+    }
+
+    /**
+     * Takes the buffer for the data from {@link #BUFFERS} upon the first write and gives it back upon flush,
+     * and the buffers to compress and seal a record only while doing so, so that an idle connection holds none.
+     */
+    private final class RecordOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Protection p;
+        private final Deflater deflater;
+        /**
+         * Data that's not sent yet, or null if there's none.
+         */
+        private byte[] buf;
+        private int pos;
+        private long seq;
+        /**
+         * Number of records in a row that didn't get smaller with compression, and the number
+         * of records left to send without even trying.
+         */
+        private int incompressible, skip;
+
+        RecordOutputStream(OutputStream out, Protection p) {
+            this.out = out;
+            this.p = p;
+            this.deflater = compression!=null ? new Deflater(level, true) : null;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (buf==null)
+                buf = BUFFERS.acquire();
+            if (pos==RECORD_SIZE)
+                writeRecord();
+            buf[pos++] = (byte)b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len>0 && buf==null)
+                buf = BUFFERS.acquire();
+            while (len>0) {
+                if (pos==RECORD_SIZE)
+                    writeRecord();
+                int n = Math.min(len, RECORD_SIZE-pos);
+                System.arraycopy(b, off, buf, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (pos>0)
+                writeRecord();
+            if (buf!=null) {
+                BUFFERS.release(buf);
+                buf = null;
+            }
+            out.flush();
+        }
+
+        private void writeRecord() throws IOException {
+            byte[] sealed = BUFFERS.acquire();
+            byte[] packed = null;
+            try {
+                byte[] data = buf;
+                int len = pos;
+                if (deflater!=null) {
+                    data = packed = BUFFERS.acquire();
+                    len = pack(packed);
+                }
+
+                int n;
+                try {
+                    n = p.seal(seq++, data, len, sealed, 4);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Failed to seal a record", e);
+                }
+                sealed[0] = (byte)(n>>>24);
+                sealed[1] = (byte)(n>>>16);
+                sealed[2] = (byte)(n>>>8);
+                sealed[3] = (byte)n;
+                out.write(sealed, 0, 4+n);  // in one write, so that the header doesn't go out in its own packet
+                pos = 0;
+            } finally {
+                BUFFERS.release(sealed);
+                if (packed!=null)
+                    BUFFERS.release(packed);
+            }
+        }
+
+        /**
+         * Puts the data into the given buffer, preceded by the flag that tells if it's compressed.
+         * Small records, and records that don't get any smaller, are sent as is.
+         *
+         * @return the length of the packed record
+         */
+        private int pack(byte[] packed) {
+            stats.plain.addAndGet(pos);
+            if (pos>=MIN_COMPRESSIBLE && skip==0) {
+                deflater.reset();
+                deflater.setInput(buf, 0, pos);
+                deflater.finish();
+                int n = deflater.deflate(packed, 1, pos-1);
+                if (deflater.finished()) {
+                    incompressible = 0;
+                    packed[0] = DEFLATED;
+                    stats.compressed.incrementAndGet();
+                    stats.packed.addAndGet(1+n);
+                    return 1+n;
+                }
+                // the data looks random, perhaps already compressed. give it a rest for a while
+                if (++incompressible>=4)
+                    skip = 16;
+            } else if (skip>0) {
+                skip--;
+            }
+
+            packed[0] = STORED;
+            System.arraycopy(buf, 0, packed, 1, pos);
+            stats.stored.incrementAndGet();
+            stats.packed.addAndGet(1+pos);
+            return 1+pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            out.close();
+            if (deflater!=null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Holds a buffer from {@link #BUFFERS} only while the data of a record is being read,
+     * and not while waiting for the next record.
+     */
+    private final class RecordInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Protection p;
+        private final Inflater inflater;
+        /**
+         * Data of the current record, or null if it's all read.
+         */
+        private byte[] buf;
+        private int pos, limit;
+        private long seq;
+
+        RecordInputStream(InputStream in, Protection p) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 8192));
+            this.p = p;
+            this.inflater = compression!=null ? new Inflater(true) : null;
+        }
+
+        /**
+         * @return false if the other side has closed the connection.
+         */
+        private boolean fill() throws IOException {
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (n<0 || n>RECORD_SIZE+1+p.overhead())
+                throw new IOException("Invalid record length: "+n);
+
+            byte[] sealed = BUFFERS.acquire();
+            byte[] opened = BUFFERS.acquire();
+            try {
+                in.readFully(sealed, 0, n);
+                int len;
+                try {
+                    len = p.open(seq++, sealed, n, opened);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Failed to open a record", e);
+                }
+
+                if (inflater==null) {
+                    buf = opened;
+                    pos = 0;
+                    limit = len;
+                } else {
+                    unpack(opened, len);
+                }
+            } finally {
+                BUFFERS.release(sealed);
+                if (buf!=opened)
+                    BUFFERS.release(opened);
+            }
+            return true;
+        }
+
+        private void unpack(byte[] opened, int len) throws IOException {
+            if (len<1)
+                throw new IOException("Empty record");
+            switch (opened[0]) {
+            case STORED:
+                buf = opened;
+                pos = 1;
+                limit = len;
+                break;
+            case DEFLATED:
+                byte[] inflated = BUFFERS.acquire();
+                inflater.reset();
+                inflater.setInput(opened, 1, len-1);
+                try {
+                    limit = inflater.inflate(inflated, 0, RECORD_SIZE);
+                    if (!inflater.finished())
+                        throw new IOException("Compressed record is larger than "+RECORD_SIZE+" bytes");
+                } catch (DataFormatException e) {
+                    BUFFERS.release(inflated);
+                    throw new IOException("Corrupt compressed record", e);
+                } catch (IOException e) {
+                    BUFFERS.release(inflated);
+                    throw e;
+                }
+                buf = inflated;
+                pos = 0;
+                break;
+            default:
+                throw new IOException("Unknown record type: "+opened[0]);
+            }
+        }
+
+        /**
+         * Makes sure there's some data in {@link #buf}, unless the other side has closed the connection.
+         */
+        private boolean ensureData() throws IOException {
+            while (pos==limit) {
+                release();
+                if (!fill())
+                    return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            if (buf!=null) {
+                BUFFERS.release(buf);
+                buf = null;
+                pos = limit = 0;
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!ensureData())
+                return -1;
+            int b = buf[pos++]&0xFF;
+            if (pos==limit)
+                release();
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len==0)
+                return 0;
+            if (!ensureData())
+                return -1;
+            int n = Math.min(len, limit-pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            if (pos==limit)
+                release();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return limit-pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            synchronized (this) {
+                release();
+            }
+            if (inflater!=null)
+                inflater.end();
+        }
+    }
+
+    /**
+     * Arrays big enough for any of the buffers used by the record streams, shared by all the connections.
+     *
+     * <p>
+     * Each connection needs several record-sized buffers while it's sending or receiving, but most connections
+     * to most masters are idle most of the time. Connections therefore borrow buffers from here as needed, so that
+     * a master connected to hundreds of others doesn't hold on to hundreds of megabytes.
+     */
+    static final class BufferPool {
+        private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger size = new AtomicInteger();
+        /**
+         * Number of idle buffers to keep. The rest are left for GC.
+         */
+        private final int max;
+
+        BufferPool(int max) {
+            this.max = max;
+        }
+
+        byte[] acquire() {
+            byte[] b = free.poll();
+            if (b==null)
+                return new byte[BUFFER_SIZE];
+            size.decrementAndGet();
+            return b;
+        }
+
+        void release(byte[] b) {
+            if (size.incrementAndGet()<=max)
+                free.offer(b);
+            else
+                size.decrementAndGet();
+        }
+
+        /**
+         * Number of buffers waiting to be reused.
+         */
+        int getIdleCount() {
+            return size.get();
+        }
+    }
+
+    /**
+     * How well the compression of the outgoing records works.
+     */
+    static final class Stats {
+        /**
+         * Bytes of data given to the record layer.
+         */
+        private final AtomicLong plain = new AtomicLong();
+        /**
+         * Bytes of the data after the compression, including the ones sent as is.
+         */
+        private final AtomicLong packed = new AtomicLong();
+        private final AtomicLong compressed = new AtomicLong();
+        private final AtomicLong stored = new AtomicLong();
+
+        /**
+         * Size of the data divided by the size that went on the wire, such as 3.0 for 3:1.
+         */
+        double getRatio() {
+            long p = packed.get();
+            return p==0 ? 1.0 : (double)plain.get()/p;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f:1 (%d bytes sent as %d bytes, %d records compressed, %d not)",
+                    getRatio(), plain.get(), packed.get(), compressed.get(), stored.get());
+        }
+    }
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    /**
+     * Records smaller than this aren't worth compressing.
+     */
+    private static final int MIN_COMPRESSIBLE = 256;
+
+    /**
+     * {@code GCMParameterSpec(int,byte[])} constructor, which doesn't exist before Java 7.
+     */
+    private static final Constructor<? extends AlgorithmParameterSpec> GCM_SPEC;
+
+    static {
+        Constructor<? extends AlgorithmParameterSpec> c = null;
+        try {
+            c = Class.forName("javax.crypto.spec.GCMParameterSpec").asSubclass(AlgorithmParameterSpec.class).getConstructor(int.class, byte[].class);
+        } catch (Exception e) {
+            // not available
+        }
+        GCM_SPEC = c;
+    }
+
+    /**
+     * Maximum number of bytes of data in a record.
+     */
+    static final int RECORD_SIZE = 64*1024;
+
+    /**
+     * Largest {@link Protection#overhead()} among the suites.
+     */
+    private static final int MAX_OVERHEAD = 32;
+
+    /**
+     * Fits a sealed record with its header, which is the largest of the buffers.
+     */
+    private static final int BUFFER_SIZE = 4+RECORD_SIZE+1+MAX_OVERHEAD;
+
+    /**
+     * Buffers of the record streams of all the connections.
+     */
+    static final BufferPool BUFFERS = new BufferPool(Integer.getInteger(RecordLayer.class.getName()+".pooledBuffers", 64));
+
+    /**
+     * Forces the use of {@link #AES_CTR_HMAC}, in case AES-GCM of the JVM turns out to be slow or broken.
+     */
+    public static boolean DISABLE_GCM = Boolean.getBoolean(RecordLayer.class.getName()+".disableGcm");
+
+    /**
+     * Don't offer nor accept compression, for masters on a fast network where it only costs CPU.
+     */
+    public static boolean DISABLE_COMPRESSION = Boolean.getBoolean(RecordLayer.class.getName()+".disableCompression");
+
+    /**
+     * {@link Deflater} level from 1 (fastest) to 9 (smallest).
+     */
+    public static int COMPRESSION_LEVEL = Integer.getInteger(RecordLayer.class.getName()+".compressionLevel", Deflater.BEST_SPEED);
+}
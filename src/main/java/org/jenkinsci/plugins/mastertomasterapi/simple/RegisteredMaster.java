@@ -26,8 +26,17 @@ public class RegisteredMaster {
 
     private boolean approved;
 
+    /**
+     * Set once this master has connected with {@link SIMProtocol2}, after which the original protocol is refused
+     * unless {@link SIMProtocol2#LOCK_IN} is off, so that no one in the middle can make us fall back to it.
+     * A new registration of the same master starts without this.
+     */
+    private boolean speaksV2;
+
     private transient PublicKey key;
 
+    private transient volatile LazyMaster master;
+
     public RegisteredMaster(URL url, PublicKey key) {
         this.url = url;
         this.publicKey = Base64.encode(key.getEncoded());
@@ -64,6 +73,35 @@ public class RegisteredMaster {
         return key;
     }
 
+    /**
+     * Gets the {@link org.jenkinsci.plugins.mastertomasterapi.Master} that connects to this master when it's used.
+     */
+    public LazyMaster getMaster() {
+        LazyMaster m = master;
+        if (m==null) {
+            synchronized (this) {
+                if (master==null)
+                    master = new LazyMaster(this);
+                m = master;
+            }
+        }
+        return m;
+    }
+
+    public boolean speaksV2() {
+        return speaksV2;
+    }
+
+    /**
+     * @return true if this wasn't known before, and needs to be saved.
+     */
+    /*package*/ synchronized boolean markSpeaksV2() {
+        if (speaksV2)
+            return false;
+        speaksV2 = true;
+        return true;
+    }
+
     public boolean isApproved() {
         // TODO: implement a proper approval check
 //        return approved;
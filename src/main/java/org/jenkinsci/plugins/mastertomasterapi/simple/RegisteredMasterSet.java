@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Extension;
+import org.jenkinsci.plugins.mastertomasterapi.InterMasterConnection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link RegisteredMaster}s that aren't connected at the moment, which connect when they are used.
+ *
+ * <p>
+ * Connected masters are in {@link SIMConnectionSet}, so between the two, every registered master
+ * is seen once by those who go through {@link InterMasterConnection#all()}, even before the first connection
+ * and after an idle one is closed by {@link LazyMaster.IdleReaper}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Extension
+public class RegisteredMasterSet extends InterMasterConnection<LazyMaster> {
+    public Iterator<LazyMaster> iterator() {
+        List<LazyMaster> r = new ArrayList<LazyMaster>();
+        SIMManagement mgmt = SIMManagement.get();
+        if (mgmt!=null) {
+            for (RegisteredMaster m : mgmt.getMasters().toArray(new RegisteredMaster[0])) {
+                LazyMaster lm = m.getMaster();
+                if (!lm.isConnected())
+                    r.add(lm);
+            }
+        }
+        return r.iterator();
+    }
+}
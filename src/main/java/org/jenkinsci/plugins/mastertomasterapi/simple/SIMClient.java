@@ -1,9 +1,16 @@
 package org.jenkinsci.plugins.mastertomasterapi.simple;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import hudson.remoting.Base64;
+import hudson.util.IOException2;
+import org.jenkinsci.plugins.mastertomasterapi.simple.SIMProtocol.ResumptionFailedException;
+import org.jenkinsci.plugins.mastertomasterapi.simple.SIMProtocol.UnsupportedVersionException;
 
+import javax.annotation.CheckForNull;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
@@ -12,44 +19,163 @@ import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 public class SIMClient {
     public ConnectedMaster connect(URL jenkins) throws IOException {
-        InetSocketAddress a = getCliTcpPort(jenkins);
-        Socket s = new Socket(a.getAddress(), a.getPort());
+        try {
+            return connect(jenkins, getCliTcpPort(jenkins));
+        } catch (IOException e) {
+            // perhaps the other master has moved to another port, or we've looked it up while it was starting
+            invalidate(jenkins);
+            throw e;
+        }
+    }
+
+    private ConnectedMaster connect(URL jenkins, InetSocketAddress a) throws IOException {
+        if (SIMProtocol2.ENABLED) {
+            ConnectedMaster cm;
+            try {
+                cm = connect(a, true, null);
+            } catch (UnsupportedVersionException e) {
+                // the original protocol is refused if the master has spoken the version 2 before
+                LOGGER.log(WARNING, jenkins+" doesn't support the protocol version 2. Falling back to the original protocol", e);
+                return connect(a, false, null);
+            }
+            if (BULK_CHANNEL) {
+                try {
+                    connect(a, true, cm);
+                } catch (IOException e) {
+                    LOGGER.log(INFO, "Failed to open a bulk channel to "+jenkins+". Bulk calls will share the channel", e);
+                }
+            }
+            return cm;
+        }
+        return connect(a, false, null);
+    }
 
-        SIMProtocol p = SIMProtocol.get();
-        new DataOutputStream(s.getOutputStream()).writeUTF("Protocol:"+p.getName());
-        return p.connect(s,true);
+    /**
+     * @param primary
+     *      See {@link SIMProtocol#connect(Socket, boolean, boolean, ConnectedMaster)}.
+     */
+    private ConnectedMaster connect(InetSocketAddress a, boolean v2, @CheckForNull ConnectedMaster primary) throws IOException {
+        try {
+            return open(a, v2, primary);
+        } catch (ResumptionFailedException e) {
+            // the ticket is used up by now, so this does the full handshake
+            LOGGER.log(FINE, "Failed to resume the session with "+a+". Connecting again", e);
+            return open(a, v2, primary);
+        }
+    }
+
+    private ConnectedMaster open(InetSocketAddress a, boolean v2, @CheckForNull ConnectedMaster primary) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(a, CONNECT_TIMEOUT);
+            String name = v2 ? SIMProtocol2.class.getName() : SIMProtocol.get().getName();
+            new DataOutputStream(s.getOutputStream()).writeUTF("Protocol:"+name);
+            return SIMProtocol.get().connect(s,true,v2,primary);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
     }
     /**
      * If the server advertises CLI endpoint, returns its location.
      */
+    /*package*/ InetSocketAddress getCliTcpPort(URL url) throws IOException {
+        Endpoint e = discover(url);
+        if (e.address==null)
+            throw new IOException("No X-Jenkins-CLI-Port from "+url);
+        return e.address;
+    }
+
+    /**
+     * Asks the master for its identity. This doesn't use {@link #ENDPOINTS}, as it decides which key to trust,
+     * but it refreshes the endpoint there.
+     */
+    public PublicKey getInstanceIdentity(URL jenkins) throws IOException, GeneralSecurityException {
+        Endpoint e = fetch(jenkins);
+        ENDPOINTS.put(jenkins.toExternalForm(), e);
+        if (e.identity==null)
+            throw new IOException("No X-Instance-Identity from "+jenkins);
+        return e.identity;
+    }
+
+    /**
+     * Where and who the other master is, as advertised in the HTTP headers of its top page.
+     */
+    /*package*/ static final class Endpoint {
+        /**
+         * Null if the master doesn't advertise the port.
+         */
+        @CheckForNull
+        final InetSocketAddress address;
+        @CheckForNull
+        final PublicKey identity;
+
+        Endpoint(InetSocketAddress address, PublicKey identity) {
+            this.address = address;
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * Finds the endpoint of the given master, from {@link #ENDPOINTS} if it's been looked up recently.
+     */
+    /*package*/ Endpoint discover(URL url) throws IOException {
+        String key = url.toExternalForm();  // URL.equals() would resolve the host name
+        Endpoint e = ENDPOINTS.getIfPresent(key);
+        if (e==null) {
+            e = fetch(url);
+            ENDPOINTS.put(key, e);
+        }
+        return e;
+    }
+
+    /**
+     * Forgets the endpoint of the given master, so that the next connection looks it up again.
+     */
+    /*package*/ static void invalidate(URL url) {
+        ENDPOINTS.invalidate(url.toExternalForm());
+    }
+
+    /**
+     * Reads both the CLI endpoint and the identity from the headers, in one HEAD request.
+     */
     // TODO: copied from CLI client. needs to refactor
-    private InetSocketAddress getCliTcpPort(URL url) throws IOException {
+    private Endpoint fetch(URL url) throws IOException {
         URLConnection head = openConnection(url);
 
+        InetSocketAddress address = null;
         String h = head.getHeaderField("X-Jenkins-CLI-Host");
         if (h==null)    h = head.getURL().getHost();
         String p = head.getHeaderField("X-Jenkins-CLI-Port");
         if (p==null)    p = head.getHeaderField("X-Hudson-CLI-Port");   // backward compatibility
+        if (p!=null)
+            address = new InetSocketAddress(h,Integer.parseInt(p));
 
-        if (p==null) {
-            throw new IOException("No X-Jenkins-CLI-Port among " + head.getHeaderFields().keySet());
+        PublicKey identity = null;
+        String publicKey = head.getHeaderField("X-Instance-Identity");
+        if (publicKey!=null) {
+            try {
+                X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.decode(publicKey));
+                KeyFactory kf = KeyFactory.getInstance("RSA");
+                identity = kf.generatePublic(spec);
+            } catch (GeneralSecurityException e) {
+                throw new IOException2("Invalid X-Instance-Identity from "+url, e);
+            }
         }
 
-        return new InetSocketAddress(h,Integer.parseInt(p));
-    }
-
-    public PublicKey getInstanceIdentity(URL jenkins) throws IOException, GeneralSecurityException {
-        // TODO: better error check
-        String publicKey = openConnection(jenkins).getHeaderField("X-Instance-Identity");
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.decode(publicKey));
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-        return kf.generatePublic(spec);
+        if (address==null && identity==null)
+            throw new IOException("Neither X-Jenkins-CLI-Port nor X-Instance-Identity among " + head.getHeaderFields().keySet());
+        return new Endpoint(address, identity);
     }
 
     private URLConnection openConnection(URL url) throws IOException {
@@ -57,6 +183,10 @@ public class SIMClient {
             throw new IOException("Invalid URL: "+url);
         }
         URLConnection head = url.openConnection();
+        head.setConnectTimeout(CONNECT_TIMEOUT);
+        head.setReadTimeout(READ_TIMEOUT);
+        if (head instanceof HttpURLConnection)
+            ((HttpURLConnection) head).setRequestMethod("HEAD");    // we only need the headers, not the whole page
         try {
             head.connect();
         } catch (IOException e) {
@@ -65,4 +195,32 @@ public class SIMClient {
         return head;
     }
 
+    /**
+     * Open a second connection to each master that speaks {@link SIMProtocol2}, for calls to
+     * {@link org.jenkinsci.plugins.mastertomasterapi.proxy.Bulk} methods and file transfers,
+     * so that they don't hold up the other calls.
+     */
+    public static boolean BULK_CHANNEL = !Boolean.getBoolean(SIMClient.class.getName()+".noBulkChannel");
+
+    /**
+     * Milliseconds to wait for the connection to another master, both to its HTTP port and to its TCP port.
+     */
+    public static int CONNECT_TIMEOUT = Integer.getInteger(SIMClient.class.getName()+".connectTimeout", (int)TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * Milliseconds to wait for another master to respond to the HTTP request that looks up its endpoint.
+     */
+    public static int READ_TIMEOUT = Integer.getInteger(SIMClient.class.getName()+".readTimeout", (int)TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * Milliseconds to remember the endpoint of a master.
+     */
+    public static long DISCOVERY_TTL = Long.getLong(SIMClient.class.getName()+".discoveryTtl", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * Endpoints of the masters looked up recently, by their URLs.
+     */
+    private static final Cache<String,Endpoint> ENDPOINTS = CacheBuilder.newBuilder().expireAfterWrite(DISCOVERY_TTL, TimeUnit.MILLISECONDS).build();
+
+    private static final Logger LOGGER = Logger.getLogger(SIMClient.class.getName());
 }
@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Connects to {@link RegisteredMaster}s in the background, and keeps trying until it succeeds.
+ *
+ * <p>
+ * Up to {@link #THREADS} masters are connected at once, so a master that doesn't respond doesn't hold up the others.
+ * After a failure, the next attempt waits twice as long as the previous one, up to {@link #MAX_BACKOFF},
+ * with some randomness so that masters that got disconnected at the same time don't come back all at once.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class SIMConnector {
+    private final SIMManagement mgmt;
+
+    /**
+     * Attempts that are scheduled or in progress, by the key of the master, so that there's only one for each master.
+     */
+    private final ConcurrentMap<PublicKey,Attempt> attempts = new ConcurrentHashMap<PublicKey,Attempt>();
+
+    /*package*/ SIMConnector(SIMManagement mgmt) {
+        this.mgmt = mgmt;
+    }
+
+    /**
+     * Starts connecting to all the registered masters that aren't connected. Returns right away.
+     */
+    public void connectAll() {
+        for (RegisteredMaster m : mgmt.getMasters().toArray(new RegisteredMaster[0]))
+            schedule(m, 0);
+    }
+
+    /**
+     * Starts connecting to the given master unless it's connected or already being connected. Returns right away.
+     */
+    public void connect(RegisteredMaster m) {
+        schedule(m, 0);
+    }
+
+    /**
+     * Called when a connection that this master has initiated is lost, to connect to it again.
+     * Connections that were idle are left alone, as they are likely closed by the {@link LazyMaster.IdleReaper}
+     * of either side, and will be connected again when they are used.
+     */
+    /*package*/ void disconnected(ConnectedMaster cm) {
+        if (LazyMaster.IDLE_TIMEOUT>0 && cm.isIdleFor(LazyMaster.IDLE_TIMEOUT/2, TimeUnit.MILLISECONDS))
+            return;
+        RegisteredMaster m = mgmt.findConnectedMaster(cm.getURL(), cm.getPublicKey());
+        if (m!=null)
+            schedule(m, 1);
+    }
+
+    private void schedule(RegisteredMaster m, int failures) {
+        Attempt a = new Attempt(m, failures);
+        if (attempts.putIfAbsent(m.getKey(), a)==null)
+            EXECUTOR.schedule(a, failures==0 ? 0 : backoff(failures), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Milliseconds to wait after the given number of failures in a row, somewhere between a half and the whole of
+     * the exponential backoff.
+     */
+    /*package*/ static long backoff(int failures) {
+        long d = Math.min(MAX_BACKOFF, INITIAL_BACKOFF<<Math.min(failures-1, 30));
+        return d/2 + (long)(RANDOM.nextDouble()*(d/2));
+    }
+
+    private final class Attempt implements Runnable {
+        private final RegisteredMaster master;
+        private int failures;
+
+        Attempt(RegisteredMaster master, int failures) {
+            this.master = master;
+            this.failures = failures;
+        }
+
+        public void run() {
+            LazyMaster lm = master.getMaster();
+            if (lm.isConnected() || !mgmt.getMasters().contains(master)) {
+                done();     // connected from either side, or unregistered, since this was scheduled
+                return;
+            }
+            try {
+                lm.connectOrFail();
+                done();
+            } catch (IOException e) {
+                retry(e);
+            } catch (RuntimeException e) {
+                retry(e);
+            }
+        }
+
+        private void retry(Exception e) {
+            long d = backoff(++failures);
+            // warn about the first failure only, instead of every few minutes until the other master comes back
+            LOGGER.log(failures==1 ? WARNING : FINE, "Failed to connect to "+master.getURL()+". Retrying in "+d+"ms", e);
+            EXECUTOR.schedule(this, d, TimeUnit.MILLISECONDS);
+        }
+
+        private void done() {
+            attempts.remove(master.getKey(), this);
+        }
+    }
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Maximum number of masters to connect to at once.
+     */
+    public static int THREADS = Integer.getInteger(SIMConnector.class.getName()+".threads", 4);
+
+    /**
+     * Milliseconds to wait before the first retry.
+     */
+    public static long INITIAL_BACKOFF = Long.getLong(SIMConnector.class.getName()+".initialBackoff", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * Upper bound of the wait between retries in milliseconds.
+     */
+    public static long MAX_BACKOFF = Long.getLong(SIMConnector.class.getName()+".maxBackoff", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(THREADS, new DaemonThreadFactory());
+
+    private static final Logger LOGGER = Logger.getLogger(SIMConnector.class.getName());
+}
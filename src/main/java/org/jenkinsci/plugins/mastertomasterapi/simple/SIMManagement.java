@@ -6,14 +6,17 @@ import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.ManagementLink;
 import hudson.remoting.Callable;
+import hudson.remoting.Channel;
 import hudson.util.HttpResponses;
 import jenkins.model.Jenkins;
-import org.jenkinsci.plugins.mastertomasterapi.InterMasterConnection;
+import org.jenkinsci.plugins.mastertomasterapi.Broadcast;
 import org.jenkinsci.plugins.mastertomasterapi.Master;
+import org.jenkinsci.plugins.mastertomasterapi.proxy.RPCMetrics;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
@@ -21,6 +24,7 @@ import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -41,6 +45,8 @@ public class SIMManagement extends ManagementLink {
     @Inject
     public transient SIMConnectionSet cons;
 
+    /*package*/ final transient SIMConnector connector = new SIMConnector(this);
+
     public SIMManagement() throws IOException {
     }
 
@@ -63,6 +69,13 @@ public class SIMManagement extends ManagementLink {
         return masters;
     }
 
+    /**
+     * Statistics of the calls to and from other masters.
+     */
+    public List<RPCMetrics.MethodStats> getMetrics() {
+        return RPCMetrics.all();
+    }
+
     public void add(RegisteredMaster m) throws IOException {
         synchronized (masters) {
             for (RegisteredMaster n : masters.toArray(new RegisteredMaster[masters.size()])) {
@@ -106,6 +119,25 @@ public class SIMManagement extends ManagementLink {
         return null;
     }
 
+    /**
+     * Gets the registered master that has the given key, which connects on demand.
+     *
+     * @return null if no such master is registered.
+     */
+    @CheckForNull
+    public LazyMaster getMaster(PublicKey key) {
+        for (RegisteredMaster m : getMasters().toArray(new RegisteredMaster[0])) {
+            if (m.getKey().equals(key))
+                return m.getMaster();
+        }
+        return null;
+    }
+
+    /**
+     * Registers the master at the given URL, replacing the registration with the same URL or key if there's one.
+     * This also forgets that the master has spoken {@link SIMProtocol2}, which lets it connect with the original
+     * protocol again, say after it has turned {@link SIMProtocol2#ENABLED} off.
+     */
     @RequirePOST
     public HttpResponse doRegister(@QueryParameter String url) throws IOException, GeneralSecurityException {
         jenkins.checkPermission(Jenkins.ADMINISTER);
@@ -114,33 +146,31 @@ public class SIMManagement extends ManagementLink {
         return HttpResponses.ok();
     }
 
+    /**
+     * Starts connecting to all the masters that aren't connected, in the background.
+     */
     @RequirePOST
     public HttpResponse doConnectAll() {
-//        SIMConnectionSet cons = SIMConnectionSet.get();
         jenkins.checkPermission(Jenkins.ADMINISTER);
-        for (RegisteredMaster master : masters) {
-            ConnectedMaster c = cons.get(master.getKey());
-            if (c==null) {// try to connect
-                URL url = master.getURL();
-                LOGGER.fine("Trying to connect to " + url);
-                try {
-                    new SIMClient().connect(url);
-                } catch (IOException e) {
-                    LOGGER.log(WARNING, "Failed to connect to " + url, e);
-                }
-            }
-        }
+        connector.connectAll();
         return HttpResponses.ok();
     }
 
     @RequirePOST
     public HttpResponse doSayHelloToAll() throws InterruptedException, IOException {
         final String me = Jenkins.getInstance().getRootUrl();
-        for (InterMasterConnection<?> imc : InterMasterConnection.all()) {
-            for (Master m : imc) {
-                m.getChannel().call(new HelloWorld(me));
+        Broadcast.Results<Void> r = new Broadcast().call(new Broadcast.Task<Void>() {
+            public Void call(Master m) throws Exception {
+                Channel ch = m.getChannel();
+                if (ch!=null)
+                    ch.call(new HelloWorld(me));
+                return null;
             }
-        }
+        });
+        for (Entry<Master,Throwable> e : r.getFailures().entrySet())
+            LOGGER.log(WARNING, "Failed to say hello to "+e.getKey().getURL(), e.getValue());
+        for (Master m : r.getTimedOut())
+            LOGGER.log(WARNING, "Timed out saying hello to "+m.getURL());
         return HttpResponses.ok();
     }
 
@@ -153,9 +183,15 @@ public class SIMManagement extends ManagementLink {
     @Initializer(after=InitMilestone.JOB_LOADED, fatal=false)
     public static void init() throws IOException {
         get().load();
-        get().doConnectAll();   // TODO: this is just to get us going
+        if (CONNECT_ON_STARTUP)
+            get().connector.connectAll();
     }
 
+    /**
+     * Connect to all the registered masters upfront, as opposed to {@linkplain LazyMaster when they are first used}.
+     */
+    public static boolean CONNECT_ON_STARTUP = Boolean.getBoolean(SIMManagement.class.getName()+".connectOnStartup");
+
     private static class HelloWorld implements Callable<Void, IOException> {
         private final String me;
 
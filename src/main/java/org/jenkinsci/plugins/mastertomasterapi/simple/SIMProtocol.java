@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.mastertomasterapi.simple;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.cli.Connection;
 import hudson.model.Computer;
 import hudson.remoting.Channel;
@@ -9,19 +10,34 @@ import hudson.remoting.Channel.Mode;
 import hudson.util.IOException2;
 import jenkins.AgentProtocol;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.mastertomasterapi.Master;
 import org.jenkinsci.main.modules.instance_identity.InstanceIdentity;
 
+import javax.annotation.CheckForNull;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
@@ -48,52 +64,408 @@ public class SIMProtocol extends AgentProtocol {
     }
 
     public ConnectedMaster connect(Socket socket, boolean isClient) throws IOException {
+        return connect(socket, isClient, false);
+    }
+
+    /**
+     * Does the handshake on an already connected socket, without the protocol name
+     * that {@link hudson.TcpSlaveAgentListener} reads. Both sides have to agree on the version.
+     *
+     * @param v2
+     *      See {@link #connect(Socket, boolean, boolean, ConnectedMaster)}.
+     */
+    public ConnectedMaster connect(Socket socket, boolean isClient, boolean v2) throws IOException {
+        return connect(socket, isClient, v2, null);
+    }
+
+    /**
+     * @param v2
+     *      True to speak the version 2 of the protocol, which starts with the exchange of {@link Hello}s
+     *      and then encrypts the connection with {@link RecordLayer}, as opposed to AES/CFB8.
+     *      See {@link SIMProtocol2}.
+     * @param primary
+     *      On the client side, the master to add this connection to as its {@linkplain ConnectedMaster#getBulkChannel() bulk channel},
+     *      instead of connecting to a new master. Requires v2. On the server side, the client tells us in {@link Hello}.
+     */
+    /*package*/ ConnectedMaster connect(Socket socket, final boolean isClient, boolean v2, @CheckForNull ConnectedMaster primary) throws IOException {
+        if (isClient && primary!=null && !v2)
+            throw new IllegalArgumentException("Bulk channels require the protocol version 2");
+        boolean resumed = false;
+        boolean opened = false;     // whether we've opened the first record from the other side
         try {
+            // a peer that stops responding in the middle of the handshake shouldn't hold up this thread forever
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
             Connection c = new Connection(socket);
-            byte[] secret = c.diffieHellman(isClient).generateSecret();
-            SecretKey sessionKey = new SecretKeySpec(Connection.fold(secret,128/8),"AES");
-            c = c.encryptConnection(sessionKey,"AES/CFB8/NoPadding");
+            Hello agreed = null;
+            if (v2)
+                agreed = isClient ? Hello.offer(c, primary!=null, SessionTickets.forServer(addressOf(socket))) : Hello.answer(c);
+            // the client knows what it asked for, and the answer only confirms it
+            boolean bulk = isClient ? primary!=null : agreed!=null && Hello.BULK.equals(agreed.get(Hello.LANE));
+            resumed = agreed!=null && agreed.ticket!=null;
 
-            InstanceIdentity id = InstanceIdentity.get();
+            byte[] secret = resumed ? agreed.secret : c.diffieHellman(isClient).generateSecret();
+            if (agreed!=null) {
+                // Hellos are exchanged in the clear, so make sure both sides have seen the same ones
+                secret = RecordLayer.derive(secret, "transcript "+Util.toHexString(agreed.transcript), 32);
+            }
+            InputStream in;
+            OutputStream out;
+            RecordLayer records = null;
+            if (agreed!=null) {
+                records = new RecordLayer(agreed.get(Hello.SUITE), secret, isClient,
+                        agreed.getCompression(), RecordLayer.COMPRESSION_LEVEL);
+                in = records.wrap(socket.getInputStream());
+                out = records.wrap(socket.getOutputStream());
+                // the handshake below needs every message sent right away
+                c = new Connection(in, new AutoFlushOutputStream(out));
+            } else {
+                SecretKey sessionKey = new SecretKeySpec(Connection.fold(secret,128/8),"AES");
+                c = c.encryptConnection(sessionKey,"AES/CFB8/NoPadding");
+                in = new BufferedInputStream(c.in);
+                out = new BufferedOutputStream(c.out);
+            }
+
+            PublicKey peer;
+            if (resumed) {
+                // proven in the handshake that the ticket came from
+                peer = agreed.ticket.peer;
+            } else {
+                InstanceIdentity id = InstanceIdentity.get();
 
-            // ascertain the public key of that instance by challenge&response.
-            c.proveIdentity(secret, new KeyPair(id.getPublic(),id.getPrivate()));
-            PublicKey peer = c.verifyIdentity(secret);
+                // ascertain the public key of that instance by challenge&response.
+                c.proveIdentity(secret, new KeyPair(id.getPublic(),id.getPrivate()));
+                peer = c.verifyIdentity(secret);
+            }
 
             c.writeUTF(Jenkins.getInstance().getRootUrl());
             final URL rootUrl = new URL(c.readUTF());
+            opened = true;
+
+            // now that the client has shown it has the ticket, it's used up
+            if (resumed && !isClient && !SessionTickets.redeem(agreed.ticket))
+                throw new IOException("The session ticket from "+rootUrl+" has already been used");
 
             RegisteredMaster m = mgmt.findConnectedMaster(rootUrl,peer);
             if (m==null) {
                 mgmt.add(m=new RegisteredMaster(rootUrl,peer));
             }
 
-            c.writeUTF(m.isApproved()?"OK":"Unauthorized");
+            if (bulk && !isClient)
+                primary = cons.get(peer);
+
+            String status = !m.isApproved() ? "Unauthorized"
+                    : agreed==null && m.speaksV2() && SIMProtocol2.LOCK_IN ? "Protocol version 2 required"
+                    : bulk && primary==null ? "Not connected" : "OK";
+            c.writeUTF(status);
 
             String msg = c.readUTF();
             if (!msg.equals("OK")) {
                 throw new IOException(socket+" refused SIM connection: "+msg);
             }
+            if (!status.equals("OK")) {
+                throw new IOException("Refused SIM connection from "+rootUrl+": "+status);
+            }
+
+            if (agreed!=null && m.markSpeaksV2()) {
+                try {
+                    mgmt.save();
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to remember that "+rootUrl+" speaks the protocol version 2", e);
+                }
+            }
 
-            Channel channel = new Channel("Simple master-to-master channel with " + socket.getInetAddress(),
+            if (agreed!=null)
+                SessionTickets.issue(secret, peer, isClient ? addressOf(socket) : null, resumed ? agreed.ticket.expires : 0);
+
+            // the channel waits for commands as long as the connection is up
+            socket.setSoTimeout(0);
+
+            Heartbeat.Liveness liveness = new Heartbeat.Liveness();
+
+            // records are already buffered
+            Channel channel = new Channel("Simple master-to-master "+(bulk?"bulk ":"")+"channel with " + socket.getInetAddress(),
                     Computer.threadPoolForRemoting, Mode.BINARY,
-                    new BufferedInputStream(c.in), new BufferedOutputStream(c.out), null, false, Jenkins.getInstance().pluginManager.uberClassLoader);
+                    liveness.watch(in), out, null, false, Jenkins.getInstance().pluginManager.uberClassLoader);
+
+            if (bulk) {
+                channel.setProperty(Master.class, primary);
+                primary.attachBulkChannel(channel, liveness);
+                LOGGER.log(INFO, "Added a bulk channel to "+rootUrl);
+                return primary;
+            }
 
-            final ConnectedMaster cm = new ConnectedMaster(peer,channel,rootUrl);
+            final ConnectedMaster cm = new ConnectedMaster(peer,channel,rootUrl,liveness);
+            cm.records = records;
+            channel.setProperty(Master.class, cm);
             cons.masters.add(cm);
-            LOGGER.log(INFO, "Connected to "+rootUrl);
+            LOGGER.log(INFO, "Connected to "+rootUrl+(agreed!=null ? " with "+agreed : ""));
 
             channel.addListener(new Listener() {
                 @Override
                 public void onClosed(Channel channel, IOException cause) {
                     LOGGER.log(INFO, "Disonncected to "+rootUrl);
                     cons.masters.remove(cm);
+                    cm.onClosed();
+                    if (isClient)
+                        mgmt.connector.disconnected(cm);
                 }
             });
 
             return cm;
         } catch (GeneralSecurityException e) {
+            if (resumed && isClient && !opened)
+                throw new ResumptionFailedException(e);
             throw new IOException2(e);
+        } catch (IOException e) {
+            // the server fails to open our records if it has derived a different secret, and drops the connection.
+            // once we've opened its record, the secret is fine, and failures from there on, such as being refused, are real
+            if (resumed && isClient && !opened && !(e instanceof ResumptionFailedException))
+                throw new ResumptionFailedException(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Identifies the server for {@link SessionTickets}.
+     */
+    private static String addressOf(Socket socket) {
+        return socket.getInetAddress().getHostAddress()+":"+socket.getPort();
+    }
+
+    /**
+     * Capabilities exchanged at the beginning of the version 2 protocol, in the clear.
+     *
+     * <p>
+     * The client offers a comma-separated list of values for each key, and the server answers with the one it picked.
+     * Keys that the other side doesn't know are ignored, which lets later versions add capabilities.
+     */
+    /*package*/ static final class Hello {
+        static final String SUITE = "suite";
+        /**
+         * Compression algorithms, most preferred first. The answer has one of them, or "none".
+         * Older version 2 peers don't send this, and they get no compression.
+         */
+        static final String COMPRESSION = "compression";
+        /**
+         * Set to {@link #BULK} by the client for a connection that adds a bulk channel to an existing one.
+         * The server echoes it back if it understands it.
+         */
+        static final String LANE = "lane";
+        static final String BULK = "bulk";
+        /**
+         * ID of the {@linkplain SessionTickets ticket} the client wants to resume the session with,
+         * which the server echoes back along with {@link #SERVER_NONCE} and {@link #PROOF} if it agrees.
+         */
+        static final String RESUME = "resume";
+        static final String CLIENT_NONCE = "cnonce";
+        static final String SERVER_NONCE = "snonce";
+        static final String PROOF = "proof";
+
+        private final Map<String,String> values = new TreeMap<String,String>();
+
+        /**
+         * In the agreed {@link Hello}, SHA-256 of the offer and the answer as they were sent,
+         * which the session secret is bound to.
+         */
+        byte[] transcript;
+
+        /**
+         * In the agreed {@link Hello}, the ticket that the session is resumed with, and the secret of the session.
+         */
+        SessionTickets.Ticket ticket;
+        byte[] secret;
+
+        String get(String key) {
+            return values.get(key);
+        }
+
+        /**
+         * Agreed compression algorithm, or null if records aren't compressed.
+         */
+        String getCompression() {
+            String s = get(COMPRESSION);
+            return s!=null && RecordLayer.getSupportedCompressions().contains(s) ? s : null;
+        }
+
+        private static String chooseCompression(String offered) {
+            if (offered!=null) {
+                List<String> l = Arrays.asList(offered.split(","));
+                for (String s : RecordLayer.getSupportedCompressions())
+                    if (l.contains(s))
+                        return s;
+            }
+            return "none";
+        }
+
+        /**
+         * @param ticket
+         *      Ticket to resume the session with, if any.
+         */
+        static Hello offer(Connection c, boolean bulk, @CheckForNull SessionTickets.Ticket ticket) throws IOException, GeneralSecurityException {
+            Hello offer = new Hello();
+            if (bulk)
+                offer.values.put(LANE, BULK);
+            if (ticket!=null) {
+                offer.values.put(RESUME, ticket.id);
+                offer.values.put(CLIENT_NONCE, SessionTickets.newNonce());
+            }
+            offer.values.put(SUITE, Util.join(RecordLayer.getSupportedSuites(), ","));
+            if (!RecordLayer.getSupportedCompressions().isEmpty())
+                offer.values.put(COMPRESSION, Util.join(RecordLayer.getSupportedCompressions(), ","));
+            String offered = offer.write(c);
+
+            String answered = readAnswer(c);
+            Hello answer = parse(answered);
+            answer.transcript = transcript(offered, answered);
+            if (answer.get(SUITE)==null || !RecordLayer.getSupportedSuites().contains(answer.get(SUITE)))
+                throw new IOException("No cipher suite in common: "+answer.get("error"));
+            if (bulk && !BULK.equals(answer.get(LANE)))
+                throw new IOException("The other side doesn't support bulk channels");
+            if (!bulk && answer.get(LANE)!=null)
+                throw new IOException("The other side answered with a lane that wasn't asked for: "+answer.get(LANE));
+            if (ticket!=null && ticket.id.equals(answer.get(RESUME))) {
+                byte[] secret = ticket.resume(offer.get(CLIENT_NONCE), answer.get(SERVER_NONCE), InstanceIdentity.get().getPublic(), ticket.peer);
+                if (!MessageDigest.isEqual(SessionTickets.proof(secret).getBytes("UTF-8"), String.valueOf(answer.get(PROOF)).getBytes("UTF-8")))
+                    throw new ResumptionFailedException(new IOException("The other side failed to prove that it has the ticket"));
+                answer.ticket = ticket;
+                answer.secret = secret;
+            }
+            return answer;
+        }
+
+        static Hello answer(Connection c) throws IOException, GeneralSecurityException {
+            String offered = c.readUTF();
+            Hello offer = parse(offered);
+            Hello answer = new Hello();
+            String suite = offer.values.containsKey(SUITE) ? RecordLayer.choose(Arrays.asList(offer.get(SUITE).split(","))) : null;
+            if (suite==null) {
+                answer.values.put("error", "None of "+offer.get(SUITE)+" is supported");
+                answer.write(c);
+                throw new IOException("No cipher suite in common: "+offer.get(SUITE));
+            }
+            answer.values.put(SUITE, suite);
+            answer.values.put(COMPRESSION, chooseCompression(offer.get(COMPRESSION)));
+            if (BULK.equals(offer.get(LANE)))
+                answer.values.put(LANE, BULK);
+
+            String id = offer.get(RESUME);
+            SessionTickets.Ticket ticket = id!=null && offer.get(CLIENT_NONCE)!=null ? SessionTickets.forClient(id) : null;
+            if (ticket!=null) {
+                String nonce = SessionTickets.newNonce();
+                byte[] secret = ticket.resume(offer.get(CLIENT_NONCE), nonce, ticket.peer, InstanceIdentity.get().getPublic());
+                answer.values.put(RESUME, id);
+                answer.values.put(SERVER_NONCE, nonce);
+                answer.values.put(PROOF, SessionTickets.proof(secret));
+                answer.ticket = ticket;
+                answer.secret = secret;
+            }
+            answer.transcript = transcript(offered, answer.write(c));
+            return answer;
+        }
+
+        /**
+         * @return what's sent.
+         */
+        private String write(Connection c) throws IOException {
+            StringBuilder buf = new StringBuilder();
+            for (Entry<String,String> e : values.entrySet())
+                buf.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            String s = buf.toString();
+            c.writeUTF(s);
+            return s;
+        }
+
+        /**
+         * Reads the answer to the offer, which is a line of text if the other side doesn't know the protocol.
+         *
+         * @throws UnsupportedVersionException
+         *      only if the other side has said it doesn't know the protocol.
+         */
+        private static String readAnswer(Connection c) throws IOException {
+            byte[] head = new byte[2];
+            c.din.readFully(head);
+            if (head[0]=='U' && head[1]=='n') {
+                // Hellos are too short to have a length that reads "Un"
+                StringBuilder line = new StringBuilder("Un");
+                int ch;
+                while ((ch=c.din.read())>=0 && ch!='\n' && line.length()<256)
+                    line.append((char)ch);
+                if (line.toString().startsWith("Unknown protocol"))
+                    throw new UnsupportedVersionException(line.toString().trim());
+                throw new IOException("Unexpected answer to the protocol version 2: "+line);
+            }
+            return new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(head), c.din)).readUTF();
+        }
+
+        private static byte[] transcript(String offer, String answer) throws GeneralSecurityException {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            try {
+                md.update(offer.getBytes("UTF-8"));
+                md.update((byte)0);
+                md.update(answer.getBytes("UTF-8"));
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            return md.digest();
+        }
+
+        private static Hello parse(String s) {
+            Hello h = new Hello();
+            for (String line : s.split("\n")) {
+                int idx = line.indexOf('=');
+                if (idx>0)
+                    h.values.put(line.substring(0,idx), line.substring(idx+1));
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+
+    /**
+     * Indicates that the other side has rejected {@link SIMProtocol2} as an unknown protocol.
+     */
+    /*package*/ static final class UnsupportedVersionException extends IOException {
+        UnsupportedVersionException(String answer) {
+            super("The other side doesn't speak the protocol version 2: "+answer);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Indicates that the connection failed while resuming the session with a {@linkplain SessionTickets ticket},
+     * so it's worth trying again with the full handshake.
+     */
+    /*package*/ static final class ResumptionFailedException extends IOException {
+        ResumptionFailedException(Throwable cause) {
+            super("Failed to resume the session", cause);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Sends every write right away, for the handshake over {@link RecordLayer}.
+     */
+    private static final class AutoFlushOutputStream extends FilterOutputStream {
+        AutoFlushOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            out.flush();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            out.flush();
         }
     }
 
@@ -101,6 +473,10 @@ public class SIMProtocol extends AgentProtocol {
         return all().get(SIMProtocol.class);
     }
 
+    /**
+     * Milliseconds to wait for the other master to respond during the handshake, on either side.
+     */
+    public static int HANDSHAKE_TIMEOUT = Integer.getInteger(SIMProtocol.class.getName()+".handshakeTimeout", (int)TimeUnit.SECONDS.toMillis(30));
 
     private static final Logger LOGGER = Logger.getLogger(SIMProtocol.class.getName());
 }
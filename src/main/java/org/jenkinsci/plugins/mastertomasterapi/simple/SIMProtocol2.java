@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Extension;
+import jenkins.AgentProtocol;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Version 2 of {@link SIMProtocol}, which negotiates capabilities upfront and encrypts the connection
+ * with {@link RecordLayer}.
+ *
+ * <p>
+ * This has its own protocol name, so that a master that doesn't know it rejects the connection right away,
+ * and {@link SIMClient} then falls back to the original protocol.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Extension
+public class SIMProtocol2 extends AgentProtocol {
+    @Override
+    public String getName() {
+        return getClass().getName();
+    }
+
+    @Override
+    public void handle(Socket socket) throws IOException {
+        SIMProtocol.get().connect(socket,false,true);
+    }
+
+    /**
+     * Set to false to make this master connect to others with the original protocol.
+     * Connections from others with this protocol are still accepted.
+     *
+     * <p>
+     * Masters that have spoken this protocol with this one refuse the original protocol from it,
+     * as per {@link #LOCK_IN}. So before turning this off, or before downgrading to a version of this plugin that
+     * doesn't speak this protocol, turn off {@link #LOCK_IN} on the other masters, or register this master again there.
+     */
+    public static boolean ENABLED = !Boolean.getBoolean(SIMProtocol2.class.getName()+".disabled");
+
+    /**
+     * Once a master has connected with this protocol, refuse the original protocol from it,
+     * so that no one in the middle can make the two fall back to it. See {@link RegisteredMaster#speaksV2()}.
+     * Registering the master again forgets that it has spoken this protocol.
+     */
+    public static boolean LOCK_IN = !Boolean.getBoolean(SIMProtocol2.class.getName()+".noLockIn");
+}
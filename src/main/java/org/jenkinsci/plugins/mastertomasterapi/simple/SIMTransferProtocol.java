@@ -0,0 +1,220 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Extension;
+import hudson.util.IOException2;
+import jenkins.AgentProtocol;
+import org.jenkinsci.plugins.mastertomasterapi.BulkTransfer;
+import org.jenkinsci.plugins.mastertomasterapi.TransferReport;
+import org.jenkinsci.plugins.mastertomasterapi.TransferTicket;
+
+import javax.annotation.CheckForNull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Side connection dedicated to a single bulk transfer between two SIM-connected masters.
+ *
+ * <p>
+ * The sender opens a new TCP connection to the receiver, and names the {@link SIMProtocol2} session
+ * the two masters already share. The side connection is then protected by a {@link RecordLayer} whose keys are
+ * derived from the secret of that session and a nonce from each side. In it, the sender presents
+ * the {@link TransferTicket}, which it received from the receiver over the session, and then sends the file.
+ *
+ * <p>
+ * So the data is as safe as on the channel, but it doesn't compete with the calls on the channel, nor
+ * go through its command framing. Masters connected with the original protocol can't use side connections.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@Extension
+public class SIMTransferProtocol extends AgentProtocol {
+    @Override
+    public String getName() {
+        return getClass().getName();
+    }
+
+    @Override
+    public void handle(Socket socket) throws IOException {
+        try {
+            socket.setSoTimeout(SIMProtocol.HANDSHAKE_TIMEOUT);
+            DataInputStream rawIn = new DataInputStream(socket.getInputStream());
+            DataOutputStream rawOut = new DataOutputStream(socket.getOutputStream());
+
+            String sessionId = rawIn.readUTF();
+            String clientNonce = rawIn.readUTF();
+            RecordLayer session = findSession(sessionId);
+            if (session==null) {
+                rawOut.writeUTF("Unknown session");
+                rawOut.flush();
+                return;
+            }
+            String serverNonce = SessionTickets.newNonce();
+            rawOut.writeUTF("OK");
+            rawOut.writeUTF(serverNonce);
+            rawOut.flush();
+
+            RecordLayer records = session.fork(clientNonce+" "+serverNonce, false);
+            DataInputStream in = new DataInputStream(records.wrap(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(records.wrap(socket.getOutputStream()));
+
+            OutputStream sink = BulkTransfer.claim(in.readUTF());
+            if (sink==null) {
+                out.writeUTF("Unknown transfer ticket");
+                out.flush();
+                return;
+            }
+            out.writeUTF("OK");
+            out.flush();
+            socket.setSoTimeout(TRANSFER_TIMEOUT);  // the sender may take a while to read the file, but not forever
+
+            long length = in.readLong();
+            long received;
+            try {
+                received = copy(in, sink, length);
+            } finally {
+                sink.close();
+            }
+
+            out.writeLong(received);
+            out.flush();
+            LOGGER.log(FINE, "Received {0} bytes from {1}", new Object[]{received, socket.getInetAddress()});
+        } catch (GeneralSecurityException e) {
+            throw new IOException2(e);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Finds our end of the session of the given ID among the connected masters.
+     */
+    @CheckForNull
+    private static RecordLayer findSession(String id) throws GeneralSecurityException {
+        for (ConnectedMaster cm : SIMConnectionSet.get()) {
+            RecordLayer r = cm.records;
+            if (r!=null && r.getSessionId().equals(id))
+                return r;
+        }
+        return null;
+    }
+
+    private static long copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buf = new byte[RecordLayer.RECORD_SIZE];
+        long total = 0;
+        while (total<length) {
+            int len = in.read(buf, 0, (int)Math.min(buf.length, length-total));
+            if (len<0)  break;
+            out.write(buf, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Sender side of the side connection.
+     *
+     * @param session
+     *      Record layer of the session with the receiver.
+     * @throws TicketClaimedException
+     *      if the transfer fails after the receiver has taken the ticket, which then can't be used again.
+     * @throws IOException
+     *      if the receiver doesn't speak this protocol, or if it can't take the transfer.
+     */
+    /*package*/ static TransferReport send(InetSocketAddress endpoint, RecordLayer session, File source, long offset, TransferTicket ticket) throws IOException {
+        long start = System.nanoTime();
+        Socket s = new Socket();
+        boolean claimed = false;
+        try {
+            s.connect(endpoint, SIMClient.CONNECT_TIMEOUT);
+            s.setSoTimeout(SIMProtocol.HANDSHAKE_TIMEOUT);
+            DataOutputStream rawOut = new DataOutputStream(s.getOutputStream());
+            DataInputStream rawIn = new DataInputStream(s.getInputStream());
+
+            String clientNonce = SessionTickets.newNonce();
+            rawOut.writeUTF("Protocol:"+SIMTransferProtocol.class.getName());
+            rawOut.writeUTF(session.getSessionId());
+            rawOut.writeUTF(clientNonce);
+            rawOut.flush();
+            String msg = rawIn.readUTF();
+            if (!msg.equals("OK"))
+                throw new IOException(endpoint+" refused the side connection: "+msg);
+            String serverNonce = rawIn.readUTF();
+
+            RecordLayer records = session.fork(clientNonce+" "+serverNonce, true);
+            DataOutputStream out = new DataOutputStream(records.wrap(s.getOutputStream()));
+            DataInputStream in = new DataInputStream(records.wrap(s.getInputStream()));
+
+            out.writeUTF(ticket.getId());
+            out.flush();
+            msg = in.readUTF();
+            if (!msg.equals("OK"))
+                throw new IOException(endpoint+" refused the transfer: "+msg);
+            claimed = true;
+            s.setSoTimeout(TRANSFER_TIMEOUT);       // the receiver may take a while to write the data, but not forever
+
+            FileInputStream fin = new FileInputStream(source);
+            try {
+                long length = Math.max(0, fin.getChannel().size()-offset);
+                out.writeLong(length);
+                if (offset>0)
+                    fin.getChannel().position(offset);
+                long sent = copy(fin, out, length);
+                out.flush();
+                if (sent!=length)
+                    throw new IOException(source+" got shorter while sending it");
+
+                long received = in.readLong();
+                if (received!=length)
+                    throw new IOException(endpoint+" received "+received+" bytes out of "+length);
+                return new TransferReport(length, System.nanoTime()-start, "side connection");
+            } finally {
+                fin.close();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException2(e);
+        } catch (IOException e) {
+            if (claimed)
+                throw new TicketClaimedException(endpoint, e);
+            throw e;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Thrown when a transfer over a side connection fails after the receiver has taken the ticket.
+     * The ticket is used up at that point, so the transfer can't fall back to the channel.
+     */
+    public static final class TicketClaimedException extends IOException2 {
+        TicketClaimedException(InetSocketAddress endpoint, IOException cause) {
+            super("Transfer to "+endpoint+" failed after the ticket was used: "+cause.getMessage(), cause);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Set to true to send bulk transfers over side connections instead of the channel.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(SIMTransferProtocol.class.getName()+".enabled");
+
+    /**
+     * Milliseconds to wait for anything to arrive once the transfer has started, on either side.
+     * Past that, the other master is considered gone, and the connection and the sink are closed.
+     */
+    public static int TRANSFER_TIMEOUT = Integer.getInteger(SIMTransferProtocol.class.getName()+".transferTimeout", (int)TimeUnit.MINUTES.toMillis(5));
+
+    private static final Logger LOGGER = Logger.getLogger(SIMTransferProtocol.class.getName());
+}
@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets two masters that have recently done the full handshake of {@link SIMProtocol2} connect again
+ * without the Diffie-Hellman key exchange nor the proof of their identities, which are the expensive parts.
+ *
+ * <p>
+ * After a full handshake, both sides derive a ticket from the secret of the session: an ID that the client
+ * presents next time, and a resumption secret that never goes on the wire. To resume, the client offers the
+ * ID and a nonce in {@link SIMProtocol.Hello}, and the server answers with its own nonce. Both sides then derive
+ * the secret of the new session from the resumption secret, the nonces, and the instance identities of both
+ * masters. The server proves that it knows the resumption secret in its answer, and the client does so with
+ * its first record, which the server can't open otherwise.
+ *
+ * <p>
+ * Tickets are used only once, by the client as soon as it offers it, and by the server once the client's first record
+ * has proven that the client has it. Each successful connection replaces it with a new one, which expires at the same
+ * time as the original, so that the masters do the full handshake at least every {@link #TTL}.
+ * Anything unexpected leads to the full handshake.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class SessionTickets {
+    private SessionTickets() {}
+
+    static final class Ticket {
+        final String id;
+        private final byte[] secret;
+        /**
+         * Identity of the other master, proven in the full handshake.
+         */
+        final PublicKey peer;
+        /**
+         * {@link System#currentTimeMillis()} after which this can't be used.
+         */
+        final long expires;
+
+        private Ticket(String id, byte[] secret, PublicKey peer, long expires) {
+            this.id = id;
+            this.secret = secret;
+            this.peer = peer;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis()>=expires;
+        }
+
+        /**
+         * Derives the secret of the resumed session.
+         */
+        byte[] resume(String clientNonce, String serverNonce, PublicKey client, PublicKey server) throws GeneralSecurityException {
+            return RecordLayer.derive(secret, "resume "+clientNonce+" "+serverNonce+" "+fingerprint(client)+" "+fingerprint(server), 32);
+        }
+    }
+
+    /**
+     * Remembers the ticket for the session that has just been established.
+     *
+     * @param address
+     *      Address of the server, on the client side. Null on the server side.
+     * @param expires
+     *      When the ticket expires, or 0 for a ticket after a full handshake.
+     */
+    static void issue(byte[] sessionSecret, PublicKey peer, @CheckForNull String address, long expires) throws GeneralSecurityException {
+        if (DISABLED)
+            return;
+        if (expires==0)
+            expires = System.currentTimeMillis()+TTL;
+        Ticket t = new Ticket(Util.toHexString(RecordLayer.derive(sessionSecret, "ticket id", 16)),
+                RecordLayer.derive(sessionSecret, "resumption", 32), peer, expires);
+        if (address!=null)
+            CLIENT.put(address, t);
+        else
+            SERVER.put(t.id, t);
+    }
+
+    /**
+     * Takes the ticket to resume the session with the server at the given address, if there's one.
+     */
+    @CheckForNull
+    static Ticket forServer(String address) {
+        return take(CLIENT, address);
+    }
+
+    /**
+     * Finds the ticket the client has presented, if it's known and still valid.
+     * The ticket stays until it's {@linkplain #redeem(Ticket) redeemed}, so that a client that can't prove it has
+     * the ticket doesn't use it up.
+     */
+    @CheckForNull
+    static Ticket forClient(String id) {
+        if (DISABLED)
+            return null;
+        Ticket t = SERVER.getIfPresent(id);
+        return t!=null && !t.isExpired() ? t : null;
+    }
+
+    /**
+     * Uses up the ticket from {@link #forClient(String)} once the client has opened the session with it.
+     *
+     * @return false if the ticket has already been used by another connection.
+     */
+    static boolean redeem(Ticket t) {
+        return SERVER.asMap().remove(t.id, t);
+    }
+
+    private static Ticket take(Cache<String,Ticket> cache, String key) {
+        if (DISABLED)
+            return null;
+        Ticket t = cache.asMap().remove(key);
+        return t!=null && !t.isExpired() ? t : null;
+    }
+
+    static String newNonce() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        return Util.toHexString(b);
+    }
+
+    /**
+     * What the server sends to prove that it has derived the same secret for the resumed session.
+     */
+    static String proof(byte[] sessionSecret) throws GeneralSecurityException {
+        return Util.toHexString(RecordLayer.derive(sessionSecret, "server proof", 16));
+    }
+
+    private static String fingerprint(PublicKey key) throws GeneralSecurityException {
+        return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(key.getEncoded()));
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Milliseconds after a full handshake during which the masters can skip it when they connect again.
+     */
+    public static long TTL = Long.getLong(SessionTickets.class.getName()+".ttl", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * Maximum number of tickets to remember on each side.
+     */
+    public static int MAX_TICKETS = Integer.getInteger(SessionTickets.class.getName()+".maxTickets", 1000);
+
+    /**
+     * Always do the full handshake.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(SessionTickets.class.getName()+".disabled");
+
+    // these need to come after the settings above
+
+    /**
+     * Tickets the other masters have given to this master as a client, by the address of the server.
+     */
+    private static final Cache<String,Ticket> CLIENT = newCache();
+
+    /**
+     * Tickets this master has given to others, by their IDs.
+     */
+    private static final Cache<String,Ticket> SERVER = newCache();
+
+    private static Cache<String,Ticket> newCache() {
+        return CacheBuilder.newBuilder().maximumSize(MAX_TICKETS).expireAfterWrite(TTL, TimeUnit.MILLISECONDS).build();
+    }
+}
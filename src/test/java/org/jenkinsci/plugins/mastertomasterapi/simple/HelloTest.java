@@ -0,0 +1,150 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Util;
+import hudson.cli.Connection;
+import org.jenkinsci.plugins.mastertomasterapi.simple.SIMProtocol.Hello;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exchanges {@link Hello}s through someone in the middle who can rewrite them.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class HelloTest {
+    private final ExecutorService executors = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executors.shutdownNow();
+    }
+
+    @Test
+    public void bothSidesAgree() throws Exception {
+        Hello[] h = handshake(new Tamper());
+        assertEquals(h[0].get(Hello.SUITE), h[1].get(Hello.SUITE));
+        assertEquals(RecordLayer.getSupportedSuites().get(0), h[0].get(Hello.SUITE));
+        assertArrayEquals(h[0].transcript, h[1].transcript);
+        assertNull(h[0].ticket);
+    }
+
+    @Test
+    public void tamperedOfferIsCaught() throws Exception {
+        Hello[] h = handshake(new Tamper() {
+            @Override
+            String offer(String s) {
+                return s+"injected=1\n";    // the server ignores keys it doesn't know, but both see a different offer
+            }
+        });
+        assertFalse(Arrays.equals(h[0].transcript, h[1].transcript));
+        assertSessionFails(h);
+    }
+
+    @Test
+    public void tamperedAnswerIsCaught() throws Exception {
+        Hello[] h = handshake(new Tamper() {
+            @Override
+            String answer(String s) {
+                return s.replace(Hello.COMPRESSION+"=", Hello.COMPRESSION+"=x");
+            }
+        });
+        assertFalse(Arrays.equals(h[0].transcript, h[1].transcript));
+        assertSessionFails(h);
+    }
+
+    @Test
+    public void unknownProtocolIsReportedAsSuch() throws Exception {
+        Connection c = new Connection(new ByteArrayInputStream("Unknown protocol:foo\n".getBytes("UTF-8")), new ByteArrayOutputStream());
+        try {
+            Hello.offer(c, false, null);
+            fail();
+        } catch (SIMProtocol.UnsupportedVersionException e) {
+            // as expected
+        }
+    }
+
+    /**
+     * Secrets bound to different transcripts, as {@link SIMProtocol} does, can't open each other's records.
+     */
+    private void assertSessionFails(Hello[] h) throws Exception {
+        byte[] secret = new byte[32];
+        RecordLayer client = new RecordLayer(h[0].get(Hello.SUITE), bind(secret, h[0]), true, null, 1);
+        RecordLayer server = new RecordLayer(h[1].get(Hello.SUITE), bind(secret, h[1]), false, null, 1);
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        OutputStream out = client.wrap(raw);
+        out.write("hello".getBytes("UTF-8"));
+        out.flush();
+        try {
+            server.wrap(new ByteArrayInputStream(raw.toByteArray())).read();
+            fail("The record should have failed to open");
+        } catch (IOException e) {
+            // as expected
+        }
+    }
+
+    private static byte[] bind(byte[] secret, Hello h) throws Exception {
+        return RecordLayer.derive(secret, "transcript "+Util.toHexString(h.transcript), 32);
+    }
+
+    /**
+     * Whoever is in the middle. Passes Hellos through as is by default.
+     */
+    static class Tamper {
+        String offer(String s) {
+            return s;
+        }
+
+        String answer(String s) {
+            return s;
+        }
+    }
+
+    /**
+     * @return the client's and the server's view of the agreed {@link Hello}.
+     */
+    private Hello[] handshake(final Tamper tamper) throws Exception {
+        PipedOutputStream clientOut = new PipedOutputStream(), serverOut = new PipedOutputStream();
+        PipedOutputStream toClient = new PipedOutputStream(), toServer = new PipedOutputStream();
+        final InputStream fromClient = new PipedInputStream(clientOut), fromServer = new PipedInputStream(serverOut);
+        final InputStream clientIn = new PipedInputStream(toClient), serverIn = new PipedInputStream(toServer);
+        final DataOutputStream dToClient = new DataOutputStream(toClient), dToServer = new DataOutputStream(toServer);
+
+        executors.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                dToServer.writeUTF(tamper.offer(new DataInputStream(fromClient).readUTF()));
+                dToServer.flush();
+                dToClient.writeUTF(tamper.answer(new DataInputStream(fromServer).readUTF()));
+                dToClient.flush();
+                return null;
+            }
+        });
+
+        final Connection server = new Connection(serverIn, serverOut);
+        Future<Hello> answer = executors.submit(new Callable<Hello>() {
+            public Hello call() throws Exception {
+                return Hello.answer(server);
+            }
+        });
+        Hello offer = Hello.offer(new Connection(clientIn, clientOut), false, null);
+        return new Hello[]{offer, answer.get(10, TimeUnit.SECONDS)};
+    }
+}
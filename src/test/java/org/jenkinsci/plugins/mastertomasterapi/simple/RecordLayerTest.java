@@ -0,0 +1,263 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class RecordLayerTest {
+    private final Random random = new Random(0);
+    private final byte[] secret = bytes(32);
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            for (String compression : Arrays.asList(null, RecordLayer.DEFLATE)) {
+                // spans several records, with a mix of compressible and random data
+                byte[] data = new byte[RecordLayer.RECORD_SIZE*3+123];
+                System.arraycopy(bytes(RecordLayer.RECORD_SIZE), 0, data, RecordLayer.RECORD_SIZE, RecordLayer.RECORD_SIZE);
+
+                byte[] raw = seal(layer(suite, true, compression), data, new byte[]{1,2,3});
+                byte[] expected = concat(data, new byte[]{1,2,3});
+                assertArrayEquals(suite+" "+compression, expected, open(layer(suite, false, compression), raw));
+            }
+        }
+    }
+
+    @Test
+    public void bothSuitesAreAvailable() {
+        assertTrue(RecordLayer.getSupportedSuites().contains(RecordLayer.AES_CTR_HMAC));
+        assertEquals(RecordLayer.getSupportedSuites().get(0), RecordLayer.choose(Arrays.asList(RecordLayer.AES_CTR_HMAC, RecordLayer.AES_GCM)));
+        assertNull(RecordLayer.choose(Arrays.asList("ROT13")));
+    }
+
+    @Test
+    public void directionsHaveTheirOwnKeys() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            // what the client sends can't be read as what the server sends
+            byte[] raw = seal(layer(suite, true, null), bytes(100));
+            assertFailsToOpen(layer(suite, true, null), raw);
+        }
+    }
+
+    @Test
+    public void tamperedRecordIsRejected() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            byte[] raw = seal(layer(suite, true, null), bytes(1000));
+            raw[4+500] ^= 1;
+            assertFailsToOpen(layer(suite, false, null), raw);
+        }
+    }
+
+    @Test
+    public void replayedRecordIsRejected() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            List<byte[]> records = split(seal(layer(suite, true, null), bytes(100), bytes(100)));
+            assertEquals(2, records.size());
+            assertFailsToOpen(layer(suite, false, null), concat(records.get(0), records.get(0)));
+        }
+    }
+
+    @Test
+    public void reorderedRecordsAreRejected() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            List<byte[]> records = split(seal(layer(suite, true, null), bytes(100), bytes(100)));
+            assertFailsToOpen(layer(suite, false, null), concat(records.get(1), records.get(0)));
+        }
+    }
+
+    @Test
+    public void droppedRecordIsDetected() throws Exception {
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            List<byte[]> records = split(seal(layer(suite, true, null), bytes(100), bytes(100), bytes(100)));
+            assertFailsToOpen(layer(suite, false, null), concat(records.get(0), records.get(2)));
+        }
+    }
+
+    @Test
+    public void invalidLengthIsRejected() throws Exception {
+        byte[] raw = {0x7F, 0, 0, 0};
+        assertFailsToOpen(layer(RecordLayer.AES_CTR_HMAC, false, null), raw);
+    }
+
+    @Test
+    public void compressibleRecordsAreDeflated() throws Exception {
+        String suite = RecordLayer.getSupportedSuites().get(0);
+        RecordLayer client = layer(suite, true, RecordLayer.DEFLATE);
+        byte[] data = new byte[RecordLayer.RECORD_SIZE];
+        Arrays.fill(data, (byte)'x');
+        byte[] raw = seal(client, data);
+
+        assertTrue("sent "+raw.length+" bytes", raw.length<data.length/10);
+        assertTrue(client.getStats().getRatio()>10);
+        assertArrayEquals(data, open(layer(suite, false, RecordLayer.DEFLATE), raw));
+    }
+
+    @Test
+    public void smallAndRandomRecordsAreStored() throws Exception {
+        String suite = RecordLayer.getSupportedSuites().get(0);
+        RecordLayer client = layer(suite, true, RecordLayer.DEFLATE);
+        byte[] small = new byte[10];
+        byte[] random = bytes(RecordLayer.RECORD_SIZE);
+        byte[] raw = seal(client, small, random);
+
+        assertTrue(client.getStats().toString(), client.getStats().toString().contains("0 records compressed, 2 not"));
+        assertArrayEquals(concat(small, random), open(layer(suite, false, RecordLayer.DEFLATE), raw));
+    }
+
+    @Test
+    public void oversizedInflatedRecordIsRejected() throws Exception {
+        String suite = RecordLayer.getSupportedSuites().get(0);
+        // the sender seals whatever it's given if it doesn't compress, so it can make a record that inflates too much
+        byte[] huge = new byte[RecordLayer.RECORD_SIZE*2];
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION, true);
+        d.setInput(huge);
+        d.finish();
+        byte[] packed = new byte[RecordLayer.RECORD_SIZE];
+        int n = d.deflate(packed, 1, packed.length-1);
+        assertTrue(d.finished());
+        d.end();
+        packed[0] = 1;  // DEFLATED
+
+        byte[] raw = seal(layer(suite, true, null), Arrays.copyOf(packed, 1+n));
+        IOException e = assertFailsToOpen(layer(suite, false, RecordLayer.DEFLATE), raw);
+        assertTrue(e.getMessage(), e.getMessage().contains("larger than"));
+    }
+
+    @Test
+    public void corruptCompressedRecordIsRejected() throws Exception {
+        String suite = RecordLayer.getSupportedSuites().get(0);
+        byte[] raw = seal(layer(suite, true, null), new byte[]{1, (byte)0xFF, (byte)0xFF, (byte)0xFF});
+        assertFailsToOpen(layer(suite, false, RecordLayer.DEFLATE), raw);
+
+        raw = seal(layer(suite, true, null), new byte[]{7, 1, 2, 3});
+        IOException e = assertFailsToOpen(layer(suite, false, RecordLayer.DEFLATE), raw);
+        assertTrue(e.getMessage(), e.getMessage().contains("Unknown record type"));
+    }
+
+    @Test
+    public void buffersAreReleasedOnFailure() throws Exception {
+        // make sure the failures below take their buffers from the pool, so that a leak shows up as fewer idle ones
+        List<byte[]> l = new ArrayList<byte[]>();
+        for (int i=0; i<4; i++)
+            l.add(RecordLayer.BUFFERS.acquire());
+        for (byte[] b : l)
+            RecordLayer.BUFFERS.release(b);
+
+        for (String suite : RecordLayer.getSupportedSuites()) {
+            byte[] raw = seal(layer(suite, true, null), bytes(1000));
+            raw[10] ^= 1;
+            int before = RecordLayer.BUFFERS.getIdleCount();
+            assertFailsToOpen(layer(suite, false, null), raw);
+            assertEquals(suite, before, RecordLayer.BUFFERS.getIdleCount());
+
+            byte[] bomb = new byte[RecordLayer.RECORD_SIZE*2];
+            Deflater d = new Deflater(Deflater.BEST_COMPRESSION, true);
+            d.setInput(bomb);
+            d.finish();
+            byte[] packed = new byte[1024];
+            int n = d.deflate(packed, 1, packed.length-1);
+            d.end();
+            packed[0] = 1;
+            raw = seal(layer(suite, true, null), Arrays.copyOf(packed, 1+n));
+            before = RecordLayer.BUFFERS.getIdleCount();
+            assertFailsToOpen(layer(suite, false, RecordLayer.DEFLATE), raw);
+            assertEquals(suite, before, RecordLayer.BUFFERS.getIdleCount());
+        }
+    }
+
+    @Test
+    public void forkedLayersAreIndependent() throws Exception {
+        String suite = RecordLayer.getSupportedSuites().get(0);
+        RecordLayer client = layer(suite, true, null), server = layer(suite, false, null);
+        assertEquals(client.getSessionId(), server.getSessionId());
+
+        byte[] data = bytes(100);
+        byte[] raw = seal(client.fork("a b", true), data);
+        assertArrayEquals(data, open(server.fork("a b", false), raw));
+        assertFailsToOpen(server.fork("a c", false), raw);
+        assertFailsToOpen(server, raw);
+    }
+
+    private RecordLayer layer(String suite, boolean isClient, String compression) {
+        return new RecordLayer(suite, secret, isClient, compression, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Sends each chunk in records of its own.
+     */
+    private static byte[] seal(RecordLayer layer, byte[]... chunks) throws Exception {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        OutputStream out = layer.wrap(raw);
+        for (byte[] c : chunks) {
+            out.write(c);
+            out.flush();
+        }
+        out.close();
+        return raw.toByteArray();
+    }
+
+    private static byte[] open(RecordLayer layer, byte[] raw) throws Exception {
+        InputStream in = layer.wrap(new ByteArrayInputStream(raw));
+        try {
+            ByteArrayOutputStream r = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len=in.read(buf))>=0)
+                r.write(buf, 0, len);
+            return r.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static IOException assertFailsToOpen(RecordLayer layer, byte[] raw) throws Exception {
+        try {
+            open(layer, raw);
+        } catch (IOException e) {
+            return e;
+        }
+        fail("Expected the records to be rejected");
+        return null;
+    }
+
+    /**
+     * Splits the raw bytes into records, each with its header.
+     */
+    private static List<byte[]> split(byte[] raw) throws IOException {
+        List<byte[]> r = new ArrayList<byte[]>();
+        int pos = 0;
+        while (pos<raw.length) {
+            int n = new DataInputStream(new ByteArrayInputStream(raw, pos, 4)).readInt();
+            r.add(Arrays.copyOfRange(raw, pos, pos+4+n));
+            pos += 4+n;
+        }
+        return r;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    private byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+}
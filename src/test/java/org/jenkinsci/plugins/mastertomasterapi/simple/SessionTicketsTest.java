@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.mastertomasterapi.simple;
+
+import hudson.Util;
+import org.jenkinsci.plugins.mastertomasterapi.simple.SessionTickets.Ticket;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class SessionTicketsTest {
+    private static PublicKey client, server;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+        g.initialize(1024);
+        client = g.generateKeyPair().getPublic();
+        server = g.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void clientTicketIsUsedOnce() throws Exception {
+        SessionTickets.issue(secret(), server, "localhost:1", 0);
+        Ticket t = SessionTickets.forServer("localhost:1");
+        assertNotNull(t);
+        assertEquals(server, t.peer);
+        assertNull(SessionTickets.forServer("localhost:1"));
+    }
+
+    @Test
+    public void serverTicketIsUsedOnce() throws Exception {
+        byte[] secret = secret();
+        SessionTickets.issue(secret, client, null, 0);
+        String id = idOf(secret);
+
+        // presenting a ticket doesn't use it up until the client proves that it has it
+        Ticket t = SessionTickets.forClient(id);
+        assertNotNull(t);
+        assertSame(t, SessionTickets.forClient(id));
+
+        assertTrue(SessionTickets.redeem(t));
+        assertFalse("a replayed offer can't redeem it again", SessionTickets.redeem(t));
+        assertNull(SessionTickets.forClient(id));
+    }
+
+    @Test
+    public void expiredTicketsAreIgnored() throws Exception {
+        byte[] secret = secret();
+        SessionTickets.issue(secret, client, null, 1);
+        SessionTickets.issue(secret, server, "localhost:2", 1);
+        assertNull(SessionTickets.forClient(idOf(secret)));
+        assertNull(SessionTickets.forServer("localhost:2"));
+    }
+
+    @Test
+    public void bothSidesResumeWithTheSameSecret() throws Exception {
+        byte[] secret = secret();
+        SessionTickets.issue(secret, server, "localhost:3", 0);
+        SessionTickets.issue(secret, client, null, 0);
+        Ticket c = SessionTickets.forServer("localhost:3");
+        Ticket s = SessionTickets.forClient(c.id);
+        assertNotNull(s);
+
+        String cn = SessionTickets.newNonce(), sn = SessionTickets.newNonce();
+        byte[] resumed = c.resume(cn, sn, client, server);
+        assertArrayEquals(resumed, s.resume(cn, sn, client, server));
+        assertEquals(SessionTickets.proof(resumed), SessionTickets.proof(s.resume(cn, sn, client, server)));
+
+        // a fresh nonce or another identity gives another secret
+        assertFalse(SessionTickets.proof(resumed).equals(SessionTickets.proof(s.resume(cn, SessionTickets.newNonce(), client, server))));
+        assertFalse(SessionTickets.proof(resumed).equals(SessionTickets.proof(s.resume(cn, sn, server, client))));
+        assertTrue(SessionTickets.redeem(s));
+    }
+
+    private static byte[] secret() {
+        byte[] b = new byte[32];
+        new SecureRandom().nextBytes(b);
+        return b;
+    }
+
+    private static String idOf(byte[] secret) throws Exception {
+        return Util.toHexString(RecordLayer.derive(secret, "ticket id", 16));
+    }
+}